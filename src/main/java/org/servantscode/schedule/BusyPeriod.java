@@ -0,0 +1,22 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+
+public class BusyPeriod {
+    private ZonedDateTime startTime;
+    private ZonedDateTime endTime;
+
+    public BusyPeriod() {}
+
+    public BusyPeriod(ZonedDateTime startTime, ZonedDateTime endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    // ----- Accessors -----
+    public ZonedDateTime getStartTime() { return startTime; }
+    public void setStartTime(ZonedDateTime startTime) { this.startTime = startTime; }
+
+    public ZonedDateTime getEndTime() { return endTime; }
+    public void setEndTime(ZonedDateTime endTime) { this.endTime = endTime; }
+}
@@ -0,0 +1,175 @@
+package org.servantscode.schedule;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Remembers the last rendered version of each calendar feed, so a feed is only rendered again
+// when the fingerprint of the underlying events changes and unchanged feeds can be answered with
+// a 304. If the database cannot be fingerprinted (or is too slow) a held copy continues to be served.
+//
+// Feeds are keyed as "<orgId>:<variant>". Rendering streams from the database to the client; a copy
+// of the bytes is kept only while it stays under the per-feed limit, so memory doesn't grow with
+// the size of a feed. Larger feeds keep just their fingerprint and tag and are streamed again when
+// a client needs the body. Copies are bounded by total size as well as count, dropping the least
+// recently used first.
+public class CalendarFeedCache {
+    private static final Logger LOG = LogManager.getLogger(CalendarFeedCache.class);
+
+    private static final int MAX_SNAPSHOTS = 500;
+    private static final long MAX_TOTAL_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_FEED_BYTES = 1024 * 1024;
+
+    private final int maxSnapshots;
+    private final long maxTotalBytes;
+    private final int maxFeedBytes;
+
+    // Access ordered, so the eldest entry is the least recently used. Guarded by itself.
+    private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public CalendarFeedCache() {
+        this(MAX_SNAPSHOTS, MAX_TOTAL_BYTES, MAX_FEED_BYTES);
+    }
+
+    public CalendarFeedCache(int maxSnapshots, long maxTotalBytes, int maxFeedBytes) {
+        this.maxSnapshots = maxSnapshots;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxFeedBytes = maxFeedBytes;
+    }
+
+    public Snapshot getSnapshot(int orgId, String variant, Supplier<FeedFingerprint> fingerprinter) {
+        return getSnapshot(orgId + ":" + variant, fingerprinter);
+    }
+
+    // The held snapshot if it is still current. Otherwise a snapshot of the current fingerprint
+    // with no feed, to be rendered with write.
+    public Snapshot getSnapshot(String key, Supplier<FeedFingerprint> fingerprinter) {
+        Snapshot cached = get(key);
+
+        FeedFingerprint current;
+        try {
+            current = fingerprinter.get();
+        } catch (RuntimeException e) {
+            if(cached == null || cached.getFeed() == null)
+                throw e;
+            LOG.warn("Could not fingerprint calendar feed " + key + ". Serving snapshot from " + cached.getGenerated(), e);
+            return cached;
+        }
+
+        if(cached != null && cached.getFingerprint().equals(current))
+            return cached;
+        return new Snapshot(key, current, null, Instant.now());
+    }
+
+    // Renders the snapshot's feed straight to output, then holds on to it: with a copy of the
+    // bytes if they fit under the per-feed limit, otherwise by fingerprint alone. Nothing is held
+    // if rendering fails part way.
+    public void write(Snapshot snapshot, OutputStream output, Consumer<OutputStream> renderer) throws IOException {
+        CopyingOutputStream copying = new CopyingOutputStream(output, maxFeedBytes);
+        renderer.accept(copying);
+        copying.flush();
+        put(new Snapshot(snapshot.key, snapshot.fingerprint, copying.getCopy(), snapshot.generated));
+    }
+
+    public void invalidate(String key) {
+        synchronized (snapshots) {
+            Snapshot removed = snapshots.remove(key);
+            if(removed != null)
+                totalBytes -= removed.size();
+        }
+    }
+
+    // ----- Private -----
+    private Snapshot get(String key) {
+        synchronized (snapshots) {
+            return snapshots.get(key);
+        }
+    }
+
+    private void put(Snapshot snapshot) {
+        synchronized (snapshots) {
+            Snapshot replaced = snapshots.put(snapshot.key, snapshot);
+            totalBytes += snapshot.size() - (replaced != null? replaced.size(): 0);
+
+            Iterator<Map.Entry<String, Snapshot>> eldest = snapshots.entrySet().iterator();
+            while((snapshots.size() > maxSnapshots || totalBytes > maxTotalBytes) && eldest.hasNext()) {
+                Snapshot evicted = eldest.next().getValue();
+                if(evicted == snapshot)
+                    continue;
+                totalBytes -= evicted.size();
+                eldest.remove();
+            }
+        }
+    }
+
+    // Passes everything through to the wrapped stream, keeping a copy until it grows past limit.
+    private static class CopyingOutputStream extends FilterOutputStream {
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private CopyingOutputStream(OutputStream out, int limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if(keep(1))
+                copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if(keep(len))
+                copy.write(b, off, len);
+        }
+
+        private boolean keep(int len) {
+            if(copy != null && copy.size() + len > limit)
+                copy = null;
+            return copy != null;
+        }
+
+        private byte[] getCopy() { return copy != null? copy.toByteArray(): null; }
+    }
+
+    public static class Snapshot {
+        private final String key;
+        private final FeedFingerprint fingerprint;
+        private final byte[] feed;
+        private final Instant generated;
+
+        private Snapshot(String key, FeedFingerprint fingerprint, byte[] feed, Instant generated) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.feed = feed;
+            //HTTP dates only carry seconds
+            this.generated = generated.truncatedTo(ChronoUnit.SECONDS);
+        }
+
+        // Unique per feed variant as well as per version of the data.
+        public String getTag() { return key.replace(':', '-') + "-" + fingerprint.toTag(); }
+
+        private int size() { return feed != null? feed.length: 0; }
+
+        // ----- Accessors -----
+        public FeedFingerprint getFingerprint() { return fingerprint; }
+        // Null when the feed is too large to hold and must be rendered.
+        public byte[] getFeed() { return feed; }
+        public Instant getGenerated() { return generated; }
+    }
+}
@@ -0,0 +1,342 @@
+package org.servantscode.schedule;
+
+import net.fortuna.ical4j.data.FoldingWriter;
+import net.fortuna.ical4j.model.*;
+import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.parameter.Cn;
+import net.fortuna.ical4j.model.parameter.Value;
+import net.fortuna.ical4j.model.property.*;
+import net.fortuna.ical4j.validate.ValidationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.time.*;
+import java.time.Duration;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyMap;
+import static java.util.Comparator.comparing;
+import static org.servantscode.commons.StringUtils.isEmpty;
+import static org.servantscode.commons.StringUtils.isSet;
+import static org.servantscode.schedule.Recurrence.RecurrenceCycle.CUSTOM;
+
+// Writes an iCalendar feed one VEVENT at a time instead of building the full ical4j Calendar graph.
+//
+// Recurring series are collapsed into a single master VEVENT with an RRULE when their events are written
+// together in start order. Occurrences missing from the feed become EXDATEs and occurrences edited
+// individually become RECURRENCE-ID overrides.
+public class CalendarFeedWriter {
+    private static final Logger LOG = LogManager.getLogger(CalendarFeedWriter.class);
+
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final TimeZone TIMEZONE;
+    private static final VTimeZone VTIMEZONE;
+
+    static {
+        System.getProperties().put("net.fortuna.ical4j.timezone.cache.impl", "net.fortuna.ical4j.util.MapTimeZoneCache");
+
+        //Adjust everything to server time.
+        TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
+        TIMEZONE = registry.getTimeZone(ZoneId.systemDefault().toString());
+        VTIMEZONE = TIMEZONE.getVTimeZone();
+    }
+
+    private final Writer out;
+    private final String host;
+    private final Map<Integer, Recurrence> recurrences;
+
+    private final List<Event> series = new ArrayList<>();
+
+    public CalendarFeedWriter(OutputStream output, String host) {
+        this(output, host, emptyMap());
+    }
+
+    public CalendarFeedWriter(OutputStream output, String host, Map<Integer, Recurrence> recurrences) {
+        this.out = new FoldingWriter(new BufferedWriter(new OutputStreamWriter(output, UTF_8)), FoldingWriter.REDUCED_FOLD_LENGTH);
+        this.host = host;
+        this.recurrences = recurrences;
+    }
+
+    public void start() {
+        write("BEGIN:VCALENDAR\r\n");
+        write(new ProdId("-//Servant's Code//iCal4j 1.0//EN").toString());
+        write(Version.VERSION_2_0.toString());
+        write(CalScale.GREGORIAN.toString());
+        write(VTIMEZONE.toString());
+    }
+
+    public void write(Event e) {
+        if(!isCollapsible(e)) {
+            writeEvent(e);
+            return;
+        }
+
+        if(!series.isEmpty() && series.get(0).getRecurringMeetingId() != e.getRecurringMeetingId())
+            flushSeries();
+        series.add(e);
+    }
+
+    public void finish() {
+        flushSeries();
+        write("END:VCALENDAR\r\n");
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // ----- Private -----
+    private boolean isCollapsible(Event e) {
+        Recurrence r = recurrences.get(e.getRecurringMeetingId());
+        return e.getRecurringMeetingId() > 0 && r != null && r.getCycle() != null && r.getCycle() != CUSTOM && r.getEndDate() != null;
+    }
+
+    private void flushSeries() {
+        if(series.isEmpty())
+            return;
+
+        List<Event> events = new ArrayList<>(series);
+        series.clear();
+
+        if(events.size() < 2 || !writeSeries(recurrences.get(events.get(0).getRecurringMeetingId()), events))
+            events.forEach(this::writeEvent);
+    }
+
+    private void writeEvent(Event e) {
+        VEvent event = toVEvent(e, convert(e.getStartTime()), convert(e.getEndTime()), e.getId() + "@" + host + ".servantscode.org");
+        event.getProperties().add(VTIMEZONE.getTimeZoneId());
+        write(event, e.getId());
+    }
+
+    // Returns false if the stored events don't follow the recurrence closely enough to be worth collapsing.
+    // The master starts where the recurrence does, so a moved first occurrence is just another override.
+    // Series stored before recurrences kept their start are anchored on their first event.
+    private boolean writeSeries(Recurrence r, List<Event> events) {
+        Event first = events.get(0);
+        ZonedDateTime anchor = r.getStartTime() != null? r.getStartTime(): first.getStartTime();
+        Recur recur = toRecur(r, anchor);
+        if(recur == null)
+            return false;
+
+        DateTime seed = zoned(anchor);
+        DateTime until = zoned(untilTime(r).plusSeconds(1));
+        TreeSet<Instant> expected = new TreeSet<>();
+        expected.add(anchor.toInstant());
+        for(Date date: recur.getDates(seed, seed, until, Value.DATE_TIME))
+            expected.add(Instant.ofEpochMilli(date.getTime()));
+
+        List<Object> template = mostCommonContent(events);
+        Map<Instant, Event> stored = new LinkedHashMap<>();
+        events.forEach(e -> stored.put(e.getStartTime().toInstant(), e));
+
+        TreeSet<Instant> excluded = new TreeSet<>();
+        Map<Instant, Event> overrides = new TreeMap<>();
+        for(Instant instance: expected) {
+            Event e = stored.remove(instance);
+            if(e == null)
+                excluded.add(instance);
+            else if(!template.equals(content(e)))
+                overrides.put(instance, e);
+        }
+
+        // Occurrences moved to another time on the same day override the instance they replace.
+        List<Event> standalone = new LinkedList<>();
+        for(Event e: stored.values()) {
+            LocalDate day = e.getStartTime().withZoneSameInstant(ZoneId.systemDefault()).toLocalDate();
+            Optional<Instant> replaced = excluded.stream()
+                    .filter(instance -> instance.atZone(ZoneId.systemDefault()).toLocalDate().equals(day))
+                    .findFirst();
+            if(replaced.isPresent()) {
+                excluded.remove(replaced.get());
+                overrides.put(replaced.get(), e);
+            } else {
+                standalone.add(e);
+            }
+        }
+
+        if(2*(overrides.size() + standalone.size()) > events.size())
+            return false;
+
+        String uid = "series" + r.getId() + "@" + host + ".servantscode.org";
+        Event templateEvent = events.stream().filter(e -> template.equals(content(e))).findFirst().get();
+        Duration length = Duration.between(templateEvent.getStartTime(), templateEvent.getEndTime());
+
+        VEvent master = toVEvent(templateEvent, seed, zoned(anchor.plus(length)), uid);
+        replace(master, new Sequence(events.stream().mapToInt(Event::getSequenceNumber).max().getAsInt()));
+        latest(events, Event::getModifiedTime).ifPresent(modified -> replace(master, new LastModified(convert(modified))));
+        earliest(events, Event::getCreatedTime).ifPresent(created -> replace(master, new Created(convert(created))));
+        master.getProperties().add(new RRule(recur));
+        if(!excluded.isEmpty()) {
+            DateList exDates = new DateList(Value.DATE_TIME, TIMEZONE);
+            excluded.forEach(instance -> exDates.add(zoned(instance)));
+            ExDate exDate = new ExDate(exDates);
+            exDate.setTimeZone(TIMEZONE);
+            master.getProperties().add(exDate);
+        }
+        write(master, first.getId());
+
+        overrides.forEach((instance, e) -> {
+            VEvent override = toVEvent(e, zoned(e.getStartTime()), zoned(e.getEndTime()), uid);
+            override.getProperties().add(new RecurrenceId(zoned(instance)));
+            write(override, e.getId());
+        });
+
+        standalone.forEach(this::writeEvent);
+        return true;
+    }
+
+    private VEvent toVEvent(Event e, DateTime start, DateTime end, String uid) {
+        VEvent event = new VEvent(start, end, e.getTitle());
+        event.getProperties().add(new Uid(uid));
+        event.getProperties().add(new Description(e.getDescription()));
+        if(e.getCreatedTime() != null)
+            event.getProperties().add(new Created(convert(e.getCreatedTime())));
+        if(e.getModifiedTime() != null)
+            event.getProperties().add(new LastModified(convert(e.getModifiedTime())));
+        event.getProperties().add(new Sequence(e.getSequenceNumber()));
+
+        if(isSet(e.getLocation()))
+            event.getProperties().add(new Location(e.getLocation()));
+
+        Organizer organizer = getOrganizer(e);
+        if(organizer != null)
+            event.getProperties().add(organizer);
+
+        return event;
+    }
+
+    private void write(VEvent event, int eventId) {
+        try {
+            event.validate(true);
+        } catch (ValidationException ex) {
+            LOG.warn("Skipping invalid calendar event: " + eventId, ex);
+            return;
+        }
+
+        write(event.toString());
+    }
+
+    private void write(String content) {
+        try {
+            out.write(content);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private Recur toRecur(Recurrence r, ZonedDateTime start) {
+        ZonedDateTime localStart = start.withZoneSameInstant(ZoneId.systemDefault());
+
+        StringBuilder rule = new StringBuilder("FREQ=");
+        switch (r.getCycle()) {
+            case DAILY:
+                rule.append("DAILY");
+                break;
+            case WEEKLY:
+                if(r.getWeeklyDays() == null || r.getWeeklyDays().isEmpty())
+                    return null;
+                rule.append("WEEKLY;WKST=MO;BYDAY=").append(r.getWeeklyDays().stream()
+                        .sorted().map(CalendarFeedWriter::dayCode).collect(Collectors.joining(",")));
+                break;
+            case DAY_OF_MONTH:
+                rule.append("MONTHLY");
+                break;
+            case WEEKDAY_OF_MONTH:
+                int weekInMonth = ((localStart.getDayOfMonth()-1)/7) + 1;
+                rule.append("MONTHLY;BYDAY=").append(weekInMonth).append(dayCode(localStart.getDayOfWeek()));
+                break;
+            case YEARLY:
+                rule.append("YEARLY");
+                break;
+            default:
+                return null;
+        }
+        rule.append(";INTERVAL=").append(Math.max(r.getFrequency(), 1));
+        rule.append(";UNTIL=").append(UTC_FORMAT.format(untilTime(r)));
+
+        try {
+            return new Recur(rule.toString());
+        } catch (ParseException ex) {
+            LOG.warn("Could not create recurrence rule: " + rule, ex);
+            return null;
+        }
+    }
+
+    // Recurrence end dates are inclusive of the last day.
+    private static Instant untilTime(Recurrence r) {
+        return r.getEndDate().plusDays(1).atStartOfDay(ZoneId.systemDefault()).minusSeconds(1).toInstant();
+    }
+
+    private static String dayCode(DayOfWeek day) {
+        return day.name().substring(0, 2);
+    }
+
+    // Everything that shows up in an occurrence's VEVENT other than its time.
+    private static List<Object> content(Event e) {
+        return Arrays.asList(e.getTitle(), e.getDescription(), e.getLocation(), e.getContactName(), e.getContactEmail(),
+                Duration.between(e.getStartTime(), e.getEndTime()));
+    }
+
+    private static List<Object> mostCommonContent(List<Event> events) {
+        Map<List<Object>, Integer> counts = new HashMap<>();
+        events.forEach(e -> counts.merge(content(e), 1, Integer::sum));
+        return counts.entrySet().stream().max(Map.Entry.comparingByValue()).get().getKey();
+    }
+
+    private static Optional<ZonedDateTime> latest(List<Event> events, Function<Event, ZonedDateTime> field) {
+        return events.stream().map(field).filter(Objects::nonNull).max(comparing(ZonedDateTime::toInstant));
+    }
+
+    private static Optional<ZonedDateTime> earliest(List<Event> events, Function<Event, ZonedDateTime> field) {
+        return events.stream().map(field).filter(Objects::nonNull).min(comparing(ZonedDateTime::toInstant));
+    }
+
+    private static void replace(VEvent event, Property property) {
+        Property existing = event.getProperty(property.getName());
+        if(existing != null)
+            event.getProperties().remove(existing);
+        event.getProperties().add(property);
+    }
+
+    private Organizer getOrganizer(Event e) {
+        if(isEmpty(e.getContactName()) && isEmpty(e.getContactEmail()))
+            return null;
+
+        Organizer organizer = new Organizer();
+        organizer.getParameters().add(new Cn(isSet(e.getContactName())? e.getContactName(): e.getContactEmail()));
+        try {
+            if(isSet(e.getContactEmail()))
+                organizer.setValue(String.format("mailto:%s", e.getContactEmail()));
+        } catch (URISyntaxException ex) {
+            LOG.warn("Invalid email address found for person: " + e.getContactName(), ex);
+            //Continue on... this does not invalidate the calendar.
+        }
+        return organizer;
+    }
+
+    private DateTime convert(ZonedDateTime zdt) {
+        return new DateTime(Date.from(zdt.toInstant()).getTime());
+    }
+
+    private DateTime zoned(ZonedDateTime zdt) {
+        return zoned(zdt.toInstant());
+    }
+
+    private DateTime zoned(Instant instant) {
+        DateTime dateTime = new DateTime(instant.toEpochMilli());
+        dateTime.setTimeZone(TIMEZONE);
+        return dateTime;
+    }
+}
@@ -36,6 +36,8 @@ public class Event {
     private int sequenceNumber;
     @JsonIgnore
     private String contactEmail;
+    @JsonIgnore
+    private String location;
 
     @JsonIgnore
     private int recurringMeetingId;
@@ -54,6 +56,7 @@ public class Event {
         this.contactId = e.contactId;
         this.contactName = e.contactName;
         this.contactEmail = e.contactEmail;
+        this.location = e.location;
         this.ministryName = e.ministryName;
         this.ministryId = e.ministryId;
         this.attendees = e.attendees;
@@ -108,6 +111,9 @@ public class Event {
     public String getContactEmail() { return contactEmail; }
     public void setContactEmail(String contactEmail) { this.contactEmail = contactEmail; }
 
+    public String getLocation() { return location; }
+    public void setLocation(String location) { this.location = location; }
+
     public String getMinistryName() { return ministryName; }
     public void setMinistryName(String ministryName) { this.ministryName = ministryName; }
 
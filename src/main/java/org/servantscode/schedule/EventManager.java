@@ -2,10 +2,13 @@ package org.servantscode.schedule;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.db.EventDB;
+import org.servantscode.schedule.db.UnitOfWork;
 
 import javax.ws.rs.NotFoundException;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class EventManager {
     private static final Logger LOG = LogManager.getLogger(EventManager.class);
@@ -24,28 +27,40 @@ public class EventManager {
     }
 
     public Event createEvent(Event event) {
-        Event resp = db.create(event);
-        List<Reservation> reservations = event.getReservations();
-        if(reservations != null) {
-            for (Reservation res : reservations)
-                res.setEventId(resp.getId());
-        }
-        resMan.createReservationsForEvent(reservations, resp.getId());
-        LOG.info("Created event: " + event.getDescription());
-        return resp;
+        return inTransaction(() -> {
+            Event resp = db.create(event);
+            List<Reservation> reservations = event.getReservations();
+            if(reservations != null) {
+                for (Reservation res : reservations)
+                    res.setEventId(resp.getId());
+            }
+            resMan.createReservationsForEvent(reservations, resp.getId());
+            LOG.info("Created event: " + event.getDescription());
+            return resp;
+        });
     }
 
     public Event updateEvent(Event event) {
-        Event resp = db.updateEvent(event);
-        resMan.updateRservationsForEvent(event.getReservations(), resp.getId());
-        LOG.info("Edited event: " + event.getDescription());
-        return resp;
+        return inTransaction(() -> {
+            Event resp = db.updateEvent(event);
+            resMan.updateRservationsForEvent(event.getReservations(), resp.getId());
+            LOG.info("Edited event: " + event.getDescription());
+            return resp;
+        });
     }
 
     public boolean deleteEvent(Event event) {
-        boolean success = db.deleteEvent(event.getId());
-        resMan.deleteReservationsForEvent(event.getId());
-        LOG.info("Deleted event: " + event.getDescription());
-        return success;
+        return inTransaction(() -> {
+            boolean success = db.deleteEvent(event.getId());
+            resMan.deleteReservationsForEvent(event.getId());
+            LOG.info("Deleted event: " + event.getDescription());
+            return success;
+        });
+    }
+
+    // ----- Private -----
+    // Reservations reach the interval index before the commit, so a rollback drops the index.
+    private static <T> T inTransaction(Supplier<T> work) {
+        return UnitOfWork.call(work, () -> IntervalIndexCache.INSTANCE.invalidate(OrganizationContext.orgId()));
     }
 }
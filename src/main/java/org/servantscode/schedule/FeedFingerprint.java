@@ -0,0 +1,30 @@
+package org.servantscode.schedule;
+
+// Cheap summary of an organization's events, their reservations and their recurrences: a version
+// counted up by database triggers on any create, edit or delete of any of them.
+public class FeedFingerprint {
+    private final long version;
+
+    public FeedFingerprint(long version) {
+        this.version = version;
+    }
+
+    public String toTag() {
+        return Long.toHexString(version);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FeedFingerprint)) return false;
+        return version == ((FeedFingerprint) o).version;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(version);
+    }
+
+    // ----- Accessors -----
+    public long getVersion() { return version; }
+}
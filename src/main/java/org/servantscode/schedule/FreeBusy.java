@@ -0,0 +1,50 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+// Busy slots of one resource. Bit i of busy (base64, least significant bit of each byte
+// first) is set when any reservation overlaps slot i, which begins slotMinutes*i after startTime.
+// When asked for, periods lists the exact busy periods as well, in start order.
+public class FreeBusy {
+    private Reservation.ResourceType resourceType;
+    private int resourceId;
+    private ZonedDateTime startTime;
+    private int slotMinutes;
+    private int slots;
+    private String busy;
+    private List<BusyPeriod> periods;
+
+    public FreeBusy() {}
+
+    public FreeBusy(Reservation.ResourceType resourceType, int resourceId, ZonedDateTime startTime, int slotMinutes, int slots, String busy) {
+        this.resourceType = resourceType;
+        this.resourceId = resourceId;
+        this.startTime = startTime;
+        this.slotMinutes = slotMinutes;
+        this.slots = slots;
+        this.busy = busy;
+    }
+
+    // ----- Accessors -----
+    public Reservation.ResourceType getResourceType() { return resourceType; }
+    public void setResourceType(Reservation.ResourceType resourceType) { this.resourceType = resourceType; }
+
+    public int getResourceId() { return resourceId; }
+    public void setResourceId(int resourceId) { this.resourceId = resourceId; }
+
+    public ZonedDateTime getStartTime() { return startTime; }
+    public void setStartTime(ZonedDateTime startTime) { this.startTime = startTime; }
+
+    public int getSlotMinutes() { return slotMinutes; }
+    public void setSlotMinutes(int slotMinutes) { this.slotMinutes = slotMinutes; }
+
+    public int getSlots() { return slots; }
+    public void setSlots(int slots) { this.slots = slots; }
+
+    public String getBusy() { return busy; }
+    public void setBusy(String busy) { this.busy = busy; }
+
+    public List<BusyPeriod> getPeriods() { return periods; }
+    public void setPeriods(List<BusyPeriod> periods) { this.periods = periods; }
+}
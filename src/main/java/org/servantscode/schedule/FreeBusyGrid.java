@@ -0,0 +1,75 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static org.servantscode.schedule.ResourceIntervals.millis;
+
+// Builds FreeBusy bitmaps for a set of resources over a window, marking each reservation's
+// slots as it is added. Optionally keeps the busy periods themselves too, in the window's zone.
+public class FreeBusyGrid {
+    private final Reservation.ResourceType type;
+    private final ZonedDateTime start;
+    private final int slotMinutes;
+    private final int slots;
+    private final long startMillis;
+    private final long slotMillis;
+    private final Map<Integer, BitSet> busy = new LinkedHashMap<>();
+    private final Map<Integer, List<BusyPeriod>> periods;
+
+    public FreeBusyGrid(Reservation.ResourceType type, List<Integer> resourceIds, ZonedDateTime start, ZonedDateTime end, int slotMinutes) {
+        this(type, resourceIds, start, end, slotMinutes, false);
+    }
+
+    public FreeBusyGrid(Reservation.ResourceType type, List<Integer> resourceIds, ZonedDateTime start, ZonedDateTime end, int slotMinutes,
+                        boolean keepPeriods) {
+        this.type = type;
+        this.start = start;
+        this.slotMinutes = slotMinutes;
+        this.slots = slotCount(start, end, slotMinutes);
+        this.startMillis = millis(start);
+        this.slotMillis = slotMinutes * 60_000L;
+        resourceIds.forEach(id -> busy.put(id, new BitSet(slots)));
+        this.periods = keepPeriods? new HashMap<>(): null;
+    }
+
+    public static int slotCount(ZonedDateTime start, ZonedDateTime end, int slotMinutes) {
+        long slotMillis = slotMinutes * 60_000L;
+        return (int) ((millis(end) - millis(start) + slotMillis - 1) / slotMillis);
+    }
+
+    // Reservations of resources outside the grid are ignored.
+    public void markBusy(int resourceId, ZonedDateTime reservationStart, ZonedDateTime reservationEnd) {
+        BitSet bits = busy.get(resourceId);
+        if(bits == null)
+            return;
+
+        if(periods != null)
+            periods.computeIfAbsent(resourceId, k -> new ArrayList<>())
+                    .add(new BusyPeriod(reservationStart.withZoneSameInstant(start.getZone()), reservationEnd.withZoneSameInstant(start.getZone())));
+
+        long from = Math.floorDiv(millis(reservationStart) - startMillis, slotMillis);
+        long to = Math.floorDiv(millis(reservationEnd) - startMillis + slotMillis - 1, slotMillis);
+        from = Math.max(from, 0);
+        to = Math.min(to, slots);
+        if(from < to)
+            bits.set((int) from, (int) to);
+    }
+
+    public List<FreeBusy> getResults() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        List<FreeBusy> results = new ArrayList<>(busy.size());
+        busy.forEach((id, bits) -> {
+            // toByteArray drops trailing zero bytes
+            byte[] bytes = Arrays.copyOf(bits.toByteArray(), (slots + 7) / 8);
+            FreeBusy result = new FreeBusy(type, id, start, slotMinutes, slots, encoder.encodeToString(bytes));
+            if(periods != null) {
+                List<BusyPeriod> resourcePeriods = periods.getOrDefault(id, new ArrayList<>());
+                resourcePeriods.sort(Comparator.comparing(BusyPeriod::getStartTime));
+                result.setPeriods(resourcePeriods);
+            }
+            results.add(result);
+        });
+        return results;
+    }
+}
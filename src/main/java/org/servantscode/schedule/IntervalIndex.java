@@ -0,0 +1,103 @@
+package org.servantscode.schedule;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.servantscode.schedule.ResourceIntervals.millis;
+
+// In-memory reservation intervals of one organization from a horizon onward, for answering
+// availability questions without a database round trip. Reads are lock free. Writes replace
+// the intervals of a single resource.
+public class IntervalIndex {
+    private final long horizon;
+    private final Map<Reservation.ResourceType, Map<Integer, ResourceIntervals>> resources = new EnumMap<>(Reservation.ResourceType.class);
+
+    public IntervalIndex(ZonedDateTime horizon, List<Reservation> reservations) {
+        this.horizon = millis(horizon);
+
+        Map<Reservation.ResourceType, Map<Integer, List<Reservation>>> grouped = new EnumMap<>(Reservation.ResourceType.class);
+        for(Reservation r: reservations) {
+            if(isIndexable(r))
+                grouped.computeIfAbsent(r.getResourceType(), k -> new HashMap<>()).computeIfAbsent(r.getResourceId(), k -> new ArrayList<>()).add(r);
+        }
+
+        for(Reservation.ResourceType type: Reservation.ResourceType.values()) {
+            Map<Integer, ResourceIntervals> byResource = new ConcurrentHashMap<>();
+            grouped.getOrDefault(type, Collections.emptyMap()).forEach((id, list) -> byResource.put(id, ResourceIntervals.of(list)));
+            resources.put(type, byResource);
+        }
+    }
+
+    // Whether questions about times from start onward can be answered from the index.
+    public boolean covers(ZonedDateTime start) {
+        return millis(start) >= horizon;
+    }
+
+    public boolean overlaps(Reservation.ResourceType type, int resourceId, ZonedDateTime start, ZonedDateTime end) {
+        ResourceIntervals intervals = resources.get(type).get(resourceId);
+        return intervals != null && intervals.overlaps(millis(start), millis(end));
+    }
+
+    // Busy periods of the resource overlapping [start, end), in the time zone of start.
+    public List<BusyPeriod> getBusyPeriods(Reservation.ResourceType type, int resourceId, ZonedDateTime start, ZonedDateTime end) {
+        ResourceIntervals intervals = resources.get(type).get(resourceId);
+        if(intervals == null)
+            return Collections.emptyList();
+
+        List<BusyPeriod> busy = new ArrayList<>();
+        intervals.forEachOverlap(millis(start), millis(end), i ->
+                busy.add(new BusyPeriod(toTime(intervals.starts[i], start), toTime(intervals.ends[i], start))));
+        return busy;
+    }
+
+    // Ids of resources of the given type with any reservation overlapping [start, end).
+    public BitSet getBusyResources(Reservation.ResourceType type, ZonedDateTime start, ZonedDateTime end) {
+        long from = millis(start);
+        long to = millis(end);
+
+        BitSet busy = new BitSet();
+        resources.get(type).forEach((id, intervals) -> {
+            if(intervals.overlaps(from, to))
+                busy.set(id);
+        });
+        return busy;
+    }
+
+    public synchronized void save(Reservation r) {
+        remove(r.getId());
+        if(isIndexable(r) && millis(r.getEndTime()) > horizon)
+            resources.get(r.getResourceType()).compute(r.getResourceId(), (id, intervals) ->
+                    (intervals == null? ResourceIntervals.EMPTY: intervals).with(r.getId(), r.getEventId(), millis(r.getStartTime()), millis(r.getEndTime())));
+    }
+
+    public synchronized void remove(int reservationId) {
+        removeMatching((intervals, i) -> intervals.ids[i] == reservationId);
+    }
+
+    public synchronized void removeEvent(int eventId) {
+        removeMatching((intervals, i) -> intervals.eventIds[i] == eventId);
+    }
+
+    public int size() {
+        return resources.values().stream().flatMap(m -> m.values().stream()).mapToInt(ResourceIntervals::size).sum();
+    }
+
+    // ----- Private -----
+    private interface IntervalMatcher {
+        boolean matches(ResourceIntervals intervals, int index);
+    }
+
+    private void removeMatching(IntervalMatcher matcher) {
+        resources.values().forEach(byResource -> byResource.replaceAll((id, intervals) -> intervals.without(i -> matcher.matches(intervals, i))));
+    }
+
+    private static boolean isIndexable(Reservation r) {
+        return r.getResourceType() != null && r.getStartTime() != null && r.getEndTime() != null;
+    }
+
+    private static ZonedDateTime toTime(long millis, ZonedDateTime zoneOf) {
+        return Instant.ofEpochMilli(millis).atZone(zoneOf.getZone());
+    }
+}
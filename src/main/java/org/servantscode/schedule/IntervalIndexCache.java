@@ -0,0 +1,120 @@
+package org.servantscode.schedule;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Holds an IntervalIndex per organization, loaded lazily with the organization's reservations
+// from the start of today onward. Writes made through this service are applied as they happen.
+// The TTL bounds how long writes made elsewhere can go unseen. When no index is available
+// (too large, or loading failed) callers fall back to the database.
+public class IntervalIndexCache {
+    private static final Logger LOG = LogManager.getLogger(IntervalIndexCache.class);
+
+    public static final IntervalIndexCache INSTANCE = new IntervalIndexCache(Duration.ofMinutes(10), 100_000, Clock.systemDefaultZone());
+
+    private final Duration ttl;
+    private final int maxIntervals;
+    private final Clock clock;
+
+    private final Map<Integer, Entry> indexes = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    public IntervalIndexCache(Duration ttl, int maxIntervals, Clock clock) {
+        this.ttl = ttl;
+        this.maxIntervals = maxIntervals;
+        this.clock = clock;
+    }
+
+    // The loader is given the horizon and returns the organization's reservations ending after it.
+    // Returns null when the database should be used instead.
+    public IntervalIndex getIndex(int orgId, Function<ZonedDateTime, List<Reservation>> loader) {
+        Entry entry = indexes.get(orgId);
+        if(entry != null && !entry.isExpired())
+            return entry.index;
+
+        synchronized (generation(orgId)) {
+            entry = indexes.get(orgId);
+            if(entry != null && !entry.isExpired())
+                return entry.index;
+
+            long generation = generation(orgId).get();
+            ZonedDateTime horizon = ZonedDateTime.now(clock).truncatedTo(ChronoUnit.DAYS);
+            IntervalIndex index = null;
+            try {
+                List<Reservation> upcoming = loader.apply(horizon);
+                if(upcoming.size() > maxIntervals)
+                    LOG.warn(String.format("Not indexing %d reservations for org %d.", upcoming.size(), orgId));
+                else
+                    index = new IntervalIndex(horizon, upcoming);
+            } catch (RuntimeException e) {
+                LOG.error("Could not load reservation index for org " + orgId + ". Using database.", e);
+                return null;
+            }
+
+            // A write during the load may be missing from what was read.
+            if(generation(orgId).get() == generation)
+                indexes.put(orgId, new Entry(index, clock.instant().plus(ttl)));
+            return index;
+        }
+    }
+
+    public void saved(int orgId, Reservation reservation) {
+        IntervalIndex index = changing(orgId);
+        if(index != null)
+            index.save(reservation);
+    }
+
+    public void removed(int orgId, int reservationId) {
+        IntervalIndex index = changing(orgId);
+        if(index != null)
+            index.remove(reservationId);
+    }
+
+    public void eventRemoved(int orgId, int eventId) {
+        IntervalIndex index = changing(orgId);
+        if(index != null)
+            index.removeEvent(eventId);
+    }
+
+    // For bulk changes that are simpler to reload than to apply.
+    public void invalidate(int orgId) {
+        generation(orgId).incrementAndGet();
+        indexes.remove(orgId);
+    }
+
+    // ----- Private -----
+    private IntervalIndex changing(int orgId) {
+        generation(orgId).incrementAndGet();
+        Entry entry = indexes.get(orgId);
+        return entry != null? entry.index: null;
+    }
+
+    private AtomicLong generation(int orgId) {
+        return generations.computeIfAbsent(orgId, k -> new AtomicLong());
+    }
+
+    private class Entry {
+        private final IntervalIndex index;
+        private final Instant expires;
+
+        private Entry(IntervalIndex index, Instant expires) {
+            this.index = index;
+            this.expires = expires;
+        }
+
+        private boolean isExpired() {
+            return !clock.instant().isBefore(expires);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.servantscode.schedule;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Position in a listing ordered by (start_time, id). Handed to clients as an opaque token so
+// the next page can be fetched with an index seek instead of an OFFSET scan.
+public class KeysetCursor {
+    private final ZonedDateTime startTime;
+    private final int id;
+
+    public KeysetCursor(ZonedDateTime startTime, int id) {
+        if(startTime == null)
+            throw new IllegalArgumentException("Cursor needs a start time");
+        this.startTime = startTime;
+        this.id = id;
+    }
+
+    public String encode() {
+        String key = startTime.toInstant().toString() + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(UTF_8));
+    }
+
+    // Throws IllegalArgumentException for anything that was not produced by encode().
+    public static KeysetCursor decode(String token) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(token), UTF_8);
+            int split = key.lastIndexOf('|');
+            if(split < 0)
+                throw new IllegalArgumentException("Malformed cursor");
+
+            ZonedDateTime startTime = Instant.parse(key.substring(0, split)).atZone(ZoneOffset.UTC);
+            return new KeysetCursor(startTime, Integer.parseInt(key.substring(split + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed cursor: " + token, e);
+        }
+    }
+
+    // ----- Accessors -----
+    public ZonedDateTime getStartTime() { return startTime; }
+    public int getId() { return id; }
+}
@@ -16,6 +16,10 @@ public class Recurrence {
 
     private List<LocalDate> exceptionDates;
 
+    // Start of the occurrence the series was generated from. Occurrences are counted from here,
+    // whichever of them have since been moved.
+    private ZonedDateTime startTime;
+
     public Recurrence() {}
 
     public Recurrence(RecurrenceCycle cycle, int frequency, LocalDate endDate) {
@@ -37,6 +41,7 @@ public class Recurrence {
         this.frequency = r.frequency;
         this.endDate = r.endDate;
         this.weeklyDays = r.weeklyDays;
+        this.startTime = r.startTime;
     }
 
     // ----- Accessors -----
@@ -57,4 +62,7 @@ public class Recurrence {
 
     public List<LocalDate> getExceptionDates() { return exceptionDates; }
     public void setExceptionDates(List<LocalDate> exceptionDates) { this.exceptionDates = exceptionDates; }
+
+    public ZonedDateTime getStartTime() { return startTime; }
+    public void setStartTime(ZonedDateTime startTime) { this.startTime = startTime; }
 }
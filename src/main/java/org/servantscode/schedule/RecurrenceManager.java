@@ -2,15 +2,24 @@ package org.servantscode.schedule;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.servantscode.commons.DateUtils;
+import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.db.EventDB;
 import org.servantscode.schedule.db.RecurrenceDB;
 import org.servantscode.schedule.db.ReservationDB;
+import org.servantscode.schedule.db.UnitOfWork;
 
 import java.time.Duration;
+import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 import static java.util.Collections.singletonList;
 import static org.servantscode.schedule.Recurrence.RecurrenceCycle.CUSTOM;
 
@@ -20,141 +29,141 @@ public class RecurrenceManager {
     private EventDB db;
     private ReservationDB resDb;
     private RecurrenceDB recurDb;
-    private EventManager eventMan;
+    private IntervalIndexCache intervals;
+    // Read only when the interval index is touched.
+    private IntSupplier orgId;
 
     public RecurrenceManager() {
         db = new EventDB();
         resDb = new ReservationDB();
         recurDb = new RecurrenceDB();
-        eventMan = new EventManager();
+        intervals = IntervalIndexCache.INSTANCE;
+        orgId = OrganizationContext::orgId;
     }
 
-    public RecurrenceManager(EventManager eventMan) {
-        this.eventMan = eventMan;
+    public RecurrenceManager(EventDB db, ReservationDB resDb, RecurrenceDB recurDb, IntervalIndexCache intervals, IntSupplier orgId) {
+        this.db = db;
+        this.resDb = resDb;
+        this.recurDb = recurDb;
+        this.intervals = intervals;
+        this.orgId = orgId;
     }
 
     public Event createRecurringEvent(Event event) {
-        Recurrence r = event.getRecurrence();
-        if(r.getCycle() == Recurrence.RecurrenceCycle.WEEKLY && r.getWeeklyDays().isEmpty())
-            throw new IllegalArgumentException();
+        return inTransaction(() -> {
+            Recurrence r = event.getRecurrence();
+            if(r.getCycle() == Recurrence.RecurrenceCycle.WEEKLY && r.getWeeklyDays().isEmpty())
+                throw new IllegalArgumentException();
 
-        if(r.getEndDate() == null)
-            throw new IllegalArgumentException();
+            if(r.getEndDate() == null)
+                throw new IllegalArgumentException();
 
-        //Store Recurrence and sanitize object structure
-        r = recurDb.create(r);
-        event.setRecurringMeetingId(r.getId());
-        event.setRecurrence(r);
+            //Store Recurrence and sanitize object structure
+            r.setStartTime(event.getStartTime());
+            r = recurDb.create(r);
+            event.setRecurringMeetingId(r.getId());
+            event.setRecurrence(r);
 
-        List<Event> futureEvents = generateEventSeries(event);
+            List<Event> futureEvents = generateEventSeries(event);
 
-        return createEventSeries(futureEvents);
+            return createEventSeries(futureEvents);
+        });
     }
 
+    // All or nothing: a failure leaves neither events nor, when created in the same unit of
+    // work, the recurrence behind.
     public Event createEventSeries(List<Event> futureEvents) {
-        if(futureEvents.isEmpty())
-            return null;
+        return inTransaction(() -> {
+            if(futureEvents.isEmpty())
+                return null;
 
-        LinkedList<Event> createdEvents = new LinkedList<>();
-        LinkedList<Event> failedEvents = new LinkedList<>();
-
-        for(Event newEvent: futureEvents) {
+            int recurrenceId = futureEvents.get(0).getRecurringMeetingId();
             try {
-                createdEvents.add(eventMan.createEvent(newEvent));
-            } catch (Exception e) {
-                LOG.error("Could not create event for: " + newEvent.getStartTime().format(ISO_OFFSET_DATE_TIME), e);
-                failedEvents.add(newEvent);
+                db.createSeries(futureEvents);
+            } catch (RuntimeException e) {
+                LOG.error("Could not create series starting: " + futureEvents.get(0).getStartTime().format(ISO_OFFSET_DATE_TIME), e);
+                throw e;
             }
-        }
 
-        LOG.info(String.format("Created recurring reservation %d. (created:%d, failed:%d)",
-                futureEvents.get(0).getRecurringMeetingId(), createdEvents.size(), failedEvents.size()));
-        return createdEvents.isEmpty()? null: createdEvents.get(0);
+            futureEvents.stream().filter(event -> event.getReservations() != null)
+                    .forEach(event -> event.getReservations().forEach(res -> intervals.saved(orgId.getAsInt(), res)));
+
+            LOG.info(String.format("Created recurring reservation %d. (events:%d)", recurrenceId, futureEvents.size()));
+            return futureEvents.get(0);
+        });
     }
 
     public Event updateRecurringEvent(Event event, Event existingEvent) {
-        Recurrence r = event.getRecurrence();
-        if(r.getCycle() == Recurrence.RecurrenceCycle.WEEKLY && r.getWeeklyDays().isEmpty())
-            throw new IllegalArgumentException();
-
-        if(r.getEndDate() == null)
-            throw new IllegalArgumentException();
+        return inTransaction(() -> {
+            Recurrence r = event.getRecurrence();
+            if(r.getCycle() == Recurrence.RecurrenceCycle.WEEKLY && r.getWeeklyDays().isEmpty())
+                throw new IllegalArgumentException();
+
+            if(r.getEndDate() == null)
+                throw new IllegalArgumentException();
+
+            Recurrence stored = r.getId() > 0? recurDb.getRecurrence(r.getId()): null;
+            boolean tailOnly = stored != null && isTailOnlyEdit(event, existingEvent, stored);
+
+            // A tail edit keeps the series' start; otherwise the series is generated afresh from this event.
+            r.setStartTime(tailOnly && stored.getStartTime() != null? stored.getStartTime(): event.getStartTime());
+
+            //Store Recurrence and sanitize object structure
+            if(r.getId() == 0) {
+                r = recurDb.create(r);
+                event.setRecurrence(r);
+            } else {
+                recurDb.update(r);
+            }
+            event.setRecurringMeetingId(r.getId());
 
-        //Store Recurrence and sanitize object structure
-        if(r.getId() == 0) {
-            r = recurDb.create(r);
-            event.setRecurrence(r);
-        } else {
-            recurDb.update(r);
-        }
-        event.setRecurringMeetingId(r.getId());
+            if(tailOnly)
+                return updateSeriesTail(event, existingEvent, stored);
 
-        List<Event> futureEvents = generateEventSeries(event);
-        return updateEventSeries(existingEvent, futureEvents);
+            List<Event> futureEvents = generateEventSeries(event);
+            return updateEventSeries(existingEvent, futureEvents);
+        });
     }
 
     // Update the existing chain of events starting with existingEvent to match futureEvents.
     // NOTE: This process will re-use existing eventIds if possible. ID -> date/time linkage is not assured.
     // TODO: Analyze this problem for registrations in the future.
+    // Only rows that differ are written, all in one transaction.
     public Event updateEventSeries(Event existingEvent, List<Event> futureEvents) {
-
-        List<Event> existingEvents = existingEvent.getRecurringMeetingId() > 0?
-            db.getUpcomingRecurringEvents(existingEvent.getRecurringMeetingId(), existingEvent.getStartTime()):
-            singletonList(existingEvent);
-
-        LinkedList<Event> updatedEvents = new LinkedList<>();
-        LinkedList<Event> createdEvents = new LinkedList<>();
-        LinkedList<Event> failedEvents = new LinkedList<>(); //Not sure what to do with these yet...
-
-        Iterator<Event> existingIter = existingEvents.iterator();
-        for(Event newEvent: futureEvents) {
-            try {
-                if(existingIter.hasNext()) {
-                    //Reclaim existing event/reservations if possible
-                    Event existing = existingIter.next();
-                    newEvent.setId(existing.getId());
-
-                    List<Reservation> existingReserations = resDb.getReservationsForEvent(existing.getId());
-                    for(Reservation reservation: newEvent.getReservations()) {
-                        Optional<Reservation> existingRes = existingReserations.stream().filter(reservation::isSameResource).findFirst();
-                        if(existingRes.isPresent())
-                            reservation.setId(existingRes.get().getId());
-                    }
-
-                    updatedEvents.add(eventMan.updateEvent(newEvent));
-                } else {
-                    createdEvents.add(eventMan.createEvent(newEvent));
-                }
-            } catch (Exception e) {
-                LOG.error("Could not create/update event for: " + newEvent.getStartTime().format(ISO_OFFSET_DATE_TIME), e);
-                failedEvents.add(newEvent);
+        return inTransaction(() -> {
+            List<Event> existingEvents = existingEvent.getRecurringMeetingId() > 0?
+                db.getUpcomingRecurringEvents(existingEvent.getRecurringMeetingId(), existingEvent.getStartTime()):
+                singletonList(existingEvent);
+
+            List<Integer> existingIds = existingEvents.stream().map(Event::getId).collect(Collectors.toList());
+            Map<Integer, List<Reservation>> existingReservations = existingIds.isEmpty()? emptyMap():
+                    resDb.getEventReservationsById(existingIds).stream().collect(Collectors.groupingBy(Reservation::getEventId));
+
+            SeriesDiff diff = SeriesDiff.between(existingEvents, existingReservations, futureEvents);
+            int recurrenceId = futureEvents.isEmpty()? existingEvent.getRecurringMeetingId(): futureEvents.get(0).getRecurringMeetingId();
+            if(!diff.isEmpty()) {
+                db.updateSeries(diff, recurrenceId);
+                applyToIntervals(diff);
             }
-        }
 
-        int deleted = 0;
-        while(existingIter.hasNext()) {
-            eventMan.deleteEvent(existingIter.next());
-            deleted++;
-        }
-
-        LOG.info(String.format("Updated recurring reservation %d. (updated:%d, created:%d, deleted:%d, failed:%d)",
-                futureEvents.get(0).getRecurringMeetingId(), updatedEvents.size(), createdEvents.size(), deleted, failedEvents.size()));
+            LOG.info(String.format("Updated recurring reservation %d. (updated:%d, created:%d, deleted:%d, unchanged:%d)",
+                    recurrenceId, diff.getUpdatedEvents().size(), diff.getCreatedEvents().size(), diff.getDeletedEventIds().size(),
+                    futureEvents.size() - diff.getUpdatedEvents().size() - diff.getCreatedEvents().size()));
 
-        return !updatedEvents.isEmpty()? updatedEvents.get(0): !createdEvents.isEmpty()? createdEvents.get(0): null;
+            return futureEvents.isEmpty()? null: futureEvents.get(0);
+        });
     }
 
     public boolean deleteRecurringEvent(Event event) {
-        Recurrence r = recurDb.getRecurrence(event.getRecurringMeetingId());
+        return inTransaction(() -> {
+            Recurrence r = recurDb.getRecurrence(event.getRecurringMeetingId());
 
-        List<Event> futureEvents = db.getUpcomingRecurringEvents(event.getRecurringMeetingId(), event.getStartTime());
-        int deleted = 0;
-        for(Event e: futureEvents) {
-            if(eventMan.deleteEvent(e))
-                deleted++;
-        }
+            Map<Integer, List<Integer>> deleted = db.deleteRecurringEvents(event.getRecurringMeetingId(), event.getStartTime());
+            deleted.values().forEach(reservationIds -> reservationIds.forEach(id -> intervals.removed(orgId.getAsInt(), id)));
 
-        LOG.info(String.format("Deleting recurring reservation %d. (deleted:%d)", event.getRecurringMeetingId(), deleted));
-        return recurDb.trimEndDate(r);
+            LOG.info(String.format("Deleting recurring reservation %d. (deleted:%d)", event.getRecurringMeetingId(), deleted.size()));
+            return recurDb.trimEndDate(r);
+        });
     }
 
     public Recurrence getRecurrence(int recurrenceId) {
@@ -162,10 +171,13 @@ public class RecurrenceManager {
     }
 
     public void populateRecurrences(List<Event> events, List<Recurrence> recurrences) {
-        recurrences.forEach(r -> {
-            events.stream().filter(e -> r.getId() == e.getRecurringMeetingId()).forEach(e -> {
+        Map<Integer, Recurrence> recurMap = new HashMap<>(recurrences.size());
+        recurrences.forEach(r -> recurMap.put(r.getId(), r));
+
+        events.forEach(e -> {
+            Recurrence r = recurMap.get(e.getRecurringMeetingId());
+            if(r != null)
                 e.setRecurrence(r);
-            });
         });
     }
 
@@ -192,8 +204,104 @@ public class RecurrenceManager {
     }
 
     // ----- Private -----
+    // Only the end date and/or exception dates of an unchanged series differ from what is stored.
+    private boolean isTailOnlyEdit(Event event, Event existingEvent, Recurrence stored) {
+        Recurrence r = event.getRecurrence();
+        if(existingEvent.getRecurringMeetingId() != r.getId() || stored.getCycle() != r.getCycle() ||
+                stored.getFrequency() != r.getFrequency() || !asSet(stored.getWeeklyDays()).equals(asSet(r.getWeeklyDays())))
+            return false;
+
+        return SeriesDiff.isSameOccurrence(existingEvent, resDb.getReservationsForEvent(existingEvent.getId()), event);
+    }
+
+    // Appends, deletes or restores only the affected occurrences.
+    private Event updateSeriesTail(Event event, Event existingEvent, Recurrence stored) {
+        Recurrence r = event.getRecurrence();
+        ZonedDateTime anchor = existingEvent.getStartTime();
+        ZonedDateTime oldEnd = endOf(stored.getEndDate());
+        ZonedDateTime newEnd = endOf(r.getEndDate());
+        ZonedDateTime keptEnd = oldEnd.isBefore(newEnd)? oldEnd: newEnd;
+
+        List<Event> created = new ArrayList<>();
+        List<Integer> deleted = new ArrayList<>();
+        if(newEnd.isBefore(oldEnd))
+            deleted.addAll(db.getRecurringEventIds(r.getId(), newEnd.isAfter(anchor)? newEnd: anchor, null));
+        else if(newEnd.isAfter(oldEnd))
+            created.addAll(occurrences(event, oldEnd, newEnd));
+
+        Set<LocalDate> oldExceptions = asSet(stored.getExceptionDates());
+        Set<LocalDate> newExceptions = asSet(r.getExceptionDates());
+        List<LocalDate> added = newExceptions.stream().filter(day -> !oldExceptions.contains(day) && inRange(day, anchor, keptEnd)).collect(Collectors.toList());
+        if(!added.isEmpty())
+            deleted.addAll(db.getRecurringEventIds(r.getId(), anchor, added));
+
+        oldExceptions.stream().filter(day -> !newExceptions.contains(day) && inRange(day, anchor, keptEnd)).forEach(day -> {
+            ZonedDateTime dayStart = day.atStartOfDay(DateUtils.getTimeZone());
+            created.addAll(occurrences(event, dayStart, dayStart.plusDays(1)));
+        });
+
+        SeriesDiff diff = SeriesDiff.of(created, deleted);
+        if(!diff.isEmpty()) {
+            db.updateSeries(diff, r.getId());
+            applyToIntervals(diff);
+        }
+
+        LOG.info(String.format("Updated end of recurring reservation %d. (created:%d, deleted:%d)", r.getId(), created.size(), deleted.size()));
+        event.setId(existingEvent.getId());
+        event.setSequenceNumber(existingEvent.getSequenceNumber());
+        return event;
+    }
+
+    // Occurrences of the event's recurrence starting in [from, to). Counted from the series' start
+    // rather than any stored occurrence, since those may have been moved; the iteration to from
+    // runs in memory.
+    private List<Event> occurrences(Event event, ZonedDateTime from, ZonedDateTime to) {
+        Recurrence r = event.getRecurrence();
+        RecurrenceIterator iter = new RecurrenceIterator(r, r.getStartTime() != null? r.getStartTime(): event.getStartTime());
+
+        List<Event> found = new ArrayList<>();
+        while(iter.hasNext()) {
+            ZonedDateTime time = iter.next();
+            if(!time.isBefore(to))
+                break;
+            if(!time.isBefore(from) && !time.isBefore(event.getStartTime()))
+                found.add(cloneToDate(event, time));
+        }
+        return found;
+    }
+
+    private static ZonedDateTime endOf(LocalDate endDate) {
+        return endDate.plusDays(1).atStartOfDay(DateUtils.getTimeZone());
+    }
+
+    // Days after the edited occurrence's day, up to the end of the series.
+    private static boolean inRange(LocalDate day, ZonedDateTime anchor, ZonedDateTime end) {
+        return day.isAfter(RecurrenceIterator.normalizeTimeZone(anchor).toLocalDate()) &&
+                day.atStartOfDay(DateUtils.getTimeZone()).isBefore(end);
+    }
+
+    private static <T> Set<T> asSet(List<T> values) {
+        return values == null? emptySet(): new HashSet<>(values);
+    }
+
+    // Reservations reach the interval index before the commit, so a rollback drops the index.
+    private <T> T inTransaction(Supplier<T> work) {
+        return UnitOfWork.call(work, () -> intervals.invalidate(orgId.getAsInt()));
+    }
+
+    private void applyToIntervals(SeriesDiff diff) {
+        int org = orgId.getAsInt();
+        diff.getDeletedReservationIds().forEach(id -> intervals.removed(org, id));
+        diff.getDeletedEventIds().forEach(id -> intervals.eventRemoved(org, id));
+        diff.getUpdatedReservations().forEach(res -> intervals.saved(org, res));
+        diff.getCreatedReservations().forEach(res -> intervals.saved(org, res));
+        diff.getCreatedEvents().stream().filter(event -> event.getReservations() != null)
+                .forEach(event -> event.getReservations().forEach(res -> intervals.saved(org, res)));
+    }
+
     private Event cloneToDate(Event e, ZonedDateTime date) {
         Event newEvent = new Event(e);
+        newEvent.setSacramentType(e.getSacramentType());
         Duration period = Duration.between(e.getStartTime(), date);
 
         newEvent.setStartTime(newEvent.getStartTime().plus(period));
@@ -0,0 +1,20 @@
+package org.servantscode.schedule;
+
+import java.util.List;
+
+public class ReservationConflict {
+    private Reservation reservation;
+    private List<Reservation> conflicts;
+
+    public ReservationConflict(Reservation reservation, List<Reservation> conflicts) {
+        this.reservation = reservation;
+        this.conflicts = conflicts;
+    }
+
+    //----- Accessors -----
+    public Reservation getReservation() { return reservation; }
+    public void setReservation(Reservation reservation) { this.reservation = reservation; }
+
+    public List<Reservation> getConflicts() { return conflicts; }
+    public void setConflicts(List<Reservation> conflicts) { this.conflicts = conflicts; }
+}
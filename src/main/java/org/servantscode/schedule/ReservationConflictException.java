@@ -0,0 +1,36 @@
+package org.servantscode.schedule;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
+
+// Raised when strict booking rejects a reservation overlapping one already held on the same resource.
+// Responds 409 with the conflicting reservations. Private event titles are always masked since
+// the caller's permissions aren't known here.
+public class ReservationConflictException extends ClientErrorException {
+    private static final long serialVersionUID = 1L;
+
+    private final ReservationConflict conflict;
+
+    public ReservationConflictException(Reservation reservation, List<Reservation> conflicts) {
+        this(new ReservationConflict(reservation, mask(conflicts)));
+    }
+
+    private ReservationConflictException(ReservationConflict conflict) {
+        super("Reservation conflicts with " + conflict.getConflicts().size() + " existing reservation(s).",
+              Response.status(CONFLICT).entity(conflict).type(APPLICATION_JSON).build());
+        this.conflict = conflict;
+    }
+
+    public ReservationConflict getConflict() { return conflict; }
+
+    // ----- Private -----
+    private static List<Reservation> mask(List<Reservation> conflicts) {
+        EventPrivatizer privatizer = new EventPrivatizer();
+        privatizer.configurePrivatizer(false, -1);
+        return privatizer.privatizeReservations(conflicts);
+    }
+}
@@ -1,5 +1,6 @@
 package org.servantscode.schedule;
 
+import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.db.ReservationDB;
 
 import java.util.HashMap;
@@ -10,9 +11,11 @@ import java.util.Map;
 // Service layer helper to manage reservations for events.
 public class ReservationManager {
     private ReservationDB db;
+    private IntervalIndexCache intervals;
 
     public ReservationManager() {
         db = new ReservationDB();
+        intervals = IntervalIndexCache.INSTANCE;
     }
 
     public List<Reservation> getReservationsForEvent(int eventId) {
@@ -26,22 +29,23 @@ public class ReservationManager {
             resMap.get(res.getEventId()).add(res);
         });
 
-        events.forEach(e -> e.setReservations(resMap.get(e.getId())));
+        events.forEach(e -> e.setReservations(resMap.getOrDefault(e.getId(), new LinkedList<>())));
     }
 
     public void createReservationsForEvent(List<Reservation> reservations, int eventId) {
         if(reservations == null)
             return;
 
-        //TODO: Look for conflicts, reject/override by permissions
+        // With strict booking on, the database rejects overlaps with a ReservationConflictException.
         for(Reservation r: reservations) {
-            r.setId(eventId); //Just to be sure
+            r.setEventId(eventId); //Just to be sure
             db.create(r);
+            intervals.saved(OrganizationContext.orgId(), r);
         }
     }
 
     public void updateRservationsForEvent(List<Reservation> reservations, int eventId) {
-        //TODO: Look for conflicts, reject/override by permissions
+        // With strict booking on, the database rejects overlaps with a ReservationConflictException.
         //TODO: Consider better matching on poorly id'd input
         List<Reservation> existing = db.getReservationsForEvent(eventId);
         if(reservations != null) {
@@ -49,20 +53,25 @@ public class ReservationManager {
                 if (r.getId() > 0) {
                     r.setEventId(eventId); //Just to be sure
                     db.update(r);
+                    intervals.saved(OrganizationContext.orgId(), r);
                     existing.removeIf((res) -> res.getId() == r.getId());
                 } else {
                     r.setEventId(eventId); //Just to be sure
                     db.create(r);
+                    intervals.saved(OrganizationContext.orgId(), r);
                 }
             }
         }
 
         // Delete removed reservations
-        for(Reservation r: existing)
+        for(Reservation r: existing) {
             db.delete(r.getId());
+            intervals.removed(OrganizationContext.orgId(), r.getId());
+        }
     }
 
     public void deleteReservationsForEvent(int eventId) {
         db.deleteReservationsByEvent(eventId);
+        intervals.eventRemoved(OrganizationContext.orgId(), eventId);
     }
 }
@@ -0,0 +1,155 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+// Immutable reservation intervals of one resource, sorted by start. Times are epoch millis.
+// Changes produce a new copy, which is cheap at the size of one resource's future bookings
+// and lets readers scan without locking.
+final class ResourceIntervals {
+    static final ResourceIntervals EMPTY = new ResourceIntervals(new long[0], new long[0], new int[0], new int[0], 0);
+
+    final long[] starts;
+    final long[] ends;
+    final int[] ids;
+    final int[] eventIds;
+
+    // Longest interval held (never shrinks), bounding how far back an overlap can start.
+    private final long maxDuration;
+
+    private ResourceIntervals(long[] starts, long[] ends, int[] ids, int[] eventIds, long maxDuration) {
+        this.starts = starts;
+        this.ends = ends;
+        this.ids = ids;
+        this.eventIds = eventIds;
+        this.maxDuration = maxDuration;
+    }
+
+    // Reservations must all be for the same resource.
+    static ResourceIntervals of(List<Reservation> reservations) {
+        List<Reservation> sorted = new ArrayList<>(reservations);
+        sorted.sort(Comparator.comparing(Reservation::getStartTime));
+
+        int n = sorted.size();
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        int[] ids = new int[n];
+        int[] eventIds = new int[n];
+        long maxDuration = 0;
+        for(int i=0; i<n; i++) {
+            Reservation r = sorted.get(i);
+            starts[i] = millis(r.getStartTime());
+            ends[i] = millis(r.getEndTime());
+            ids[i] = r.getId();
+            eventIds[i] = r.getEventId();
+            maxDuration = Math.max(maxDuration, ends[i] - starts[i]);
+        }
+        return new ResourceIntervals(starts, ends, ids, eventIds, maxDuration);
+    }
+
+    static long millis(ZonedDateTime time) {
+        return time.toInstant().toEpochMilli();
+    }
+
+    int size() { return starts.length; }
+
+    // Replaces any interval with the same id.
+    ResourceIntervals with(int id, int eventId, long start, long end) {
+        ResourceIntervals base = without(i -> ids[i] == id);
+        int at = upperBound(base.starts, start);
+
+        long[] newStarts = insert(base.starts, at, start);
+        long[] newEnds = insert(base.ends, at, end);
+        int[] newIds = insert(base.ids, at, id);
+        int[] newEventIds = insert(base.eventIds, at, eventId);
+        return new ResourceIntervals(newStarts, newEnds, newIds, newEventIds, Math.max(base.maxDuration, end - start));
+    }
+
+    ResourceIntervals without(IntPredicate matchesIndex) {
+        int kept = 0;
+        for(int i=0; i<size(); i++) {
+            if(!matchesIndex.test(i))
+                kept++;
+        }
+        if(kept == size())
+            return this;
+
+        long[] newStarts = new long[kept];
+        long[] newEnds = new long[kept];
+        int[] newIds = new int[kept];
+        int[] newEventIds = new int[kept];
+        for(int i=0, j=0; i<size(); i++) {
+            if(matchesIndex.test(i))
+                continue;
+            newStarts[j] = starts[i];
+            newEnds[j] = ends[i];
+            newIds[j] = ids[i];
+            newEventIds[j++] = eventIds[i];
+        }
+        return new ResourceIntervals(newStarts, newEnds, newIds, newEventIds, maxDuration);
+    }
+
+    // Visits, in start order, the index of every interval overlapping [start, end). As with
+    // Postgres ranges, an empty interval (start == end) overlaps nothing.
+    void forEachOverlap(long start, long end, IntConsumer consumer) {
+        if(end <= start)
+            return;
+
+        int hi = lowerBound(starts, end);
+        int lo = hi;
+        long earliest = start - maxDuration;
+        while(lo > 0 && starts[lo - 1] >= earliest)
+            lo--;
+
+        for(int i=lo; i<hi; i++) {
+            if(ends[i] > start && ends[i] > starts[i])
+                consumer.accept(i);
+        }
+    }
+
+    boolean overlaps(long start, long end) {
+        boolean[] found = new boolean[1];
+        forEachOverlap(start, end, i -> found[0] = true);
+        return found[0];
+    }
+
+    // ----- Private -----
+    // First index with value >= key
+    private static int lowerBound(long[] values, long key) {
+        int lo = 0, hi = values.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // First index with value > key
+    private static int upperBound(long[] values, long key) {
+        int lo = 0, hi = values.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] <= key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static long[] insert(long[] values, int at, long value) {
+        long[] result = Arrays.copyOf(values, values.length + 1);
+        System.arraycopy(values, at, result, at + 1, values.length - at);
+        result[at] = value;
+        return result;
+    }
+
+    private static int[] insert(int[] values, int at, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        System.arraycopy(values, at, result, at + 1, values.length - at);
+        result[at] = value;
+        return result;
+    }
+}
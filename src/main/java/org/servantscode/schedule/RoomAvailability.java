@@ -0,0 +1,34 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+// How many occurrences of a series a room is already reserved for.
+public class RoomAvailability {
+    private Room room;
+    private int occurrences;
+    private int conflicts;
+    private List<ZonedDateTime> conflictTimes;
+
+    public RoomAvailability() {}
+
+    public RoomAvailability(Room room, int occurrences, List<ZonedDateTime> conflictTimes) {
+        this.room = room;
+        this.occurrences = occurrences;
+        this.conflicts = conflictTimes.size();
+        this.conflictTimes = conflictTimes;
+    }
+
+    // ----- Accessors -----
+    public Room getRoom() { return room; }
+    public void setRoom(Room room) { this.room = room; }
+
+    public int getOccurrences() { return occurrences; }
+    public void setOccurrences(int occurrences) { this.occurrences = occurrences; }
+
+    public int getConflicts() { return conflicts; }
+    public void setConflicts(int conflicts) { this.conflicts = conflicts; }
+
+    public List<ZonedDateTime> getConflictTimes() { return conflictTimes; }
+    public void setConflictTimes(List<ZonedDateTime> conflictTimes) { this.conflictTimes = conflictTimes; }
+}
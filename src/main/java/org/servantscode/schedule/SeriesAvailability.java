@@ -0,0 +1,59 @@
+package org.servantscode.schedule;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+// Ranks rooms by how many occurrences of a series they are already reserved for. Occurrences
+// share one duration, so sorted by start they are also sorted by end, and each room needs a
+// single merge of its start-ordered reservations against them.
+public class SeriesAvailability {
+    private final List<ZonedDateTime> starts;
+    private final Duration duration;
+
+    public SeriesAvailability(List<ZonedDateTime> starts, Duration duration) {
+        this.starts = new ArrayList<>(starts);
+        this.starts.sort(Comparator.naturalOrder());
+        this.duration = duration;
+    }
+
+    // Rooms with at most maxConflicts conflicting occurrences, fewest conflicts first.
+    public List<RoomAvailability> rank(List<Room> rooms, List<Reservation> reservations, int maxConflicts) {
+        Map<Integer, List<Reservation>> byRoom = new HashMap<>();
+        reservations.stream().filter(r -> r.getResourceType() == Reservation.ResourceType.ROOM)
+                .forEach(r -> byRoom.computeIfAbsent(r.getResourceId(), k -> new ArrayList<>()).add(r));
+
+        List<RoomAvailability> results = new ArrayList<>();
+        for(Room room: rooms) {
+            List<ZonedDateTime> conflicts = conflictsOf(byRoom.getOrDefault(room.getId(), Collections.emptyList()));
+            if(conflicts.size() <= maxConflicts)
+                results.add(new RoomAvailability(room, starts.size(), conflicts));
+        }
+
+        results.sort(Comparator.comparingInt(RoomAvailability::getConflicts)
+                .thenComparing(r -> r.getRoom().getName(), Comparator.nullsLast(Comparator.naturalOrder())));
+        return results;
+    }
+
+    // ----- Private -----
+    // Every reservation starting before an occurrence ends has been taken in; the latest end
+    // among them overlaps the occurrence exactly when any of them does.
+    private List<ZonedDateTime> conflictsOf(List<Reservation> reservations) {
+        reservations.sort(Comparator.comparing(Reservation::getStartTime));
+
+        List<ZonedDateTime> conflicts = new ArrayList<>();
+        ZonedDateTime latestEnd = null;
+        int next = 0;
+        for(ZonedDateTime start: starts) {
+            ZonedDateTime end = start.plus(duration);
+            while(next < reservations.size() && reservations.get(next).getStartTime().isBefore(end)) {
+                ZonedDateTime resEnd = reservations.get(next++).getEndTime();
+                if(latestEnd == null || resEnd.isAfter(latestEnd))
+                    latestEnd = resEnd;
+            }
+            if(latestEnd != null && latestEnd.isAfter(start))
+                conflicts.add(start);
+        }
+        return conflicts;
+    }
+}
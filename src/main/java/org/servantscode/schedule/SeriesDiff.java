@@ -0,0 +1,166 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+
+// The row changes needed to turn the upcoming events of a series into a regenerated series.
+// Occurrences are paired in order, reusing the existing event ids, and reservations of paired
+// events are matched by resource. Only what actually differs is listed. An occurrence whose
+// crosslinks or reservations change is updated too, so its modified time and sequence move on
+// and calendar feeds pick up the change.
+public class SeriesDiff {
+    private final List<Event> updatedEvents = new ArrayList<>();
+    private final List<Event> relinkedEvents = new ArrayList<>();
+    private final List<Event> createdEvents = new ArrayList<>();
+    private final List<Integer> deletedEventIds = new ArrayList<>();
+    private final List<Reservation> updatedReservations = new ArrayList<>();
+    private final List<Reservation> createdReservations = new ArrayList<>();
+    private final List<Integer> deletedReservationIds = new ArrayList<>();
+
+    // existingReservations holds the reservations of the existing events, by event id.
+    public static SeriesDiff between(List<Event> existing, Map<Integer, List<Reservation>> existingReservations, List<Event> future) {
+        SeriesDiff diff = new SeriesDiff();
+
+        Iterator<Event> existingIter = existing.iterator();
+        for(Event newEvent: future) {
+            if(!existingIter.hasNext()) {
+                diff.createdEvents.add(newEvent);
+                continue;
+            }
+
+            Event old = existingIter.next();
+            newEvent.setId(old.getId());
+            newEvent.setCreatedTime(old.getCreatedTime());
+            boolean relinked = !sameIds(old.getDepartmentIds(), newEvent.getDepartmentIds()) || !sameIds(old.getCategoryIds(), newEvent.getCategoryIds());
+            if(relinked)
+                diff.relinkedEvents.add(newEvent);
+
+            boolean rebooked = diff.matchReservations(newEvent, existingReservations.getOrDefault(old.getId(), Collections.emptyList()));
+
+            if(sameColumns(old, newEvent) && !relinked && !rebooked) {
+                newEvent.setSequenceNumber(old.getSequenceNumber());
+                newEvent.setModifiedTime(old.getModifiedTime());
+            } else {
+                newEvent.setSequenceNumber(old.getSequenceNumber() + 1);
+                diff.updatedEvents.add(newEvent);
+            }
+        }
+
+        while(existingIter.hasNext())
+            diff.deletedEventIds.add(existingIter.next().getId());
+
+        return diff;
+    }
+
+    // Only adds and removes whole occurrences, as when just the end date or exceptions change.
+    public static SeriesDiff of(List<Event> created, List<Integer> deletedEventIds) {
+        SeriesDiff diff = new SeriesDiff();
+        diff.createdEvents.addAll(created);
+        diff.deletedEventIds.addAll(deletedEventIds);
+        return diff;
+    }
+
+    // Whether b would be written exactly as a is, crosslinks and reservations included.
+    public static boolean isSameOccurrence(Event a, List<Reservation> aReservations, Event b) {
+        if(!sameColumns(a, b) || !sameIds(a.getDepartmentIds(), b.getDepartmentIds()) || !sameIds(a.getCategoryIds(), b.getCategoryIds()))
+            return false;
+
+        List<Reservation> bReservations = b.getReservations() == null? Collections.emptyList(): b.getReservations();
+        if(aReservations.size() != bReservations.size())
+            return false;
+
+        List<Reservation> unmatched = new LinkedList<>(aReservations);
+        for(Reservation res: bReservations) {
+            if(!removeMatch(unmatched, res))
+                return false;
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return updatedEvents.isEmpty() && relinkedEvents.isEmpty() && createdEvents.isEmpty() && deletedEventIds.isEmpty() &&
+                updatedReservations.isEmpty() && createdReservations.isEmpty() && deletedReservationIds.isEmpty();
+    }
+
+    // ----- Private -----
+    // Returns whether any of the event's reservations are created, updated or deleted.
+    private boolean matchReservations(Event event, List<Reservation> existing) {
+        int changes = createdReservations.size() + updatedReservations.size() + deletedReservationIds.size();
+        Map<String, Deque<Reservation>> byResource = new HashMap<>();
+        existing.forEach(res -> byResource.computeIfAbsent(resourceKey(res), k -> new ArrayDeque<>()).add(res));
+
+        if(event.getReservations() != null) {
+            for(Reservation res: event.getReservations()) {
+                res.setEventId(event.getId());
+                Deque<Reservation> candidates = byResource.get(resourceKey(res));
+                Reservation old = candidates == null? null: candidates.poll();
+                if(old == null) {
+                    res.setId(0);
+                    createdReservations.add(res);
+                } else {
+                    res.setId(old.getId());
+                    if(!sameReservation(old, res))
+                        updatedReservations.add(res);
+                }
+            }
+        }
+
+        byResource.values().forEach(left -> left.forEach(res -> deletedReservationIds.add(res.getId())));
+        return createdReservations.size() + updatedReservations.size() + deletedReservationIds.size() > changes;
+    }
+
+    private static boolean removeMatch(List<Reservation> reservations, Reservation res) {
+        Iterator<Reservation> iter = reservations.iterator();
+        while(iter.hasNext()) {
+            Reservation other = iter.next();
+            if(res.isSameResource(other) && sameReservation(other, res)) {
+                iter.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String resourceKey(Reservation res) {
+        return res.getResourceType() + ":" + res.getResourceId();
+    }
+
+    private static boolean sameColumns(Event a, Event b) {
+        return a.getRecurringMeetingId() == b.getRecurringMeetingId() &&
+                sameTime(a.getStartTime(), b.getStartTime()) &&
+                sameTime(a.getEndTime(), b.getEndTime()) &&
+                Objects.equals(a.getTitle(), b.getTitle()) &&
+                Objects.equals(a.getDescription(), b.getDescription()) &&
+                a.isPrivateEvent() == b.isPrivateEvent() &&
+                a.getSchedulerId() == b.getSchedulerId() &&
+                Math.max(a.getContactId(), 0) == Math.max(b.getContactId(), 0) &&
+                Math.max(a.getMinistryId(), 0) == Math.max(b.getMinistryId(), 0) &&
+                a.getAttendees() == b.getAttendees() &&
+                a.getSacramentType() == b.getSacramentType();
+    }
+
+    private static boolean sameReservation(Reservation a, Reservation b) {
+        return a.getReservingPersonId() == b.getReservingPersonId() &&
+                sameTime(a.getStartTime(), b.getStartTime()) &&
+                sameTime(a.getEndTime(), b.getEndTime());
+    }
+
+    private static boolean sameTime(ZonedDateTime a, ZonedDateTime b) {
+        return a == null? b == null: b != null && a.isEqual(b);
+    }
+
+    private static boolean sameIds(List<Integer> a, List<Integer> b) {
+        Set<Integer> left = a == null? Collections.emptySet(): new HashSet<>(a);
+        Set<Integer> right = b == null? Collections.emptySet(): new HashSet<>(b);
+        return left.equals(right);
+    }
+
+    // ----- Accessors -----
+    public List<Event> getUpdatedEvents() { return updatedEvents; }
+    public List<Event> getRelinkedEvents() { return relinkedEvents; }
+    public List<Event> getCreatedEvents() { return createdEvents; }
+    public List<Integer> getDeletedEventIds() { return deletedEventIds; }
+    public List<Reservation> getUpdatedReservations() { return updatedReservations; }
+    public List<Reservation> getCreatedReservations() { return createdReservations; }
+    public List<Integer> getDeletedReservationIds() { return deletedReservationIds; }
+}
@@ -0,0 +1,27 @@
+package org.servantscode.schedule;
+
+import java.time.ZonedDateTime;
+
+public class SlotCandidate {
+    private Room room;
+    private ZonedDateTime startTime;
+    private ZonedDateTime endTime;
+
+    public SlotCandidate() {}
+
+    public SlotCandidate(Room room, ZonedDateTime startTime, ZonedDateTime endTime) {
+        this.room = room;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    // ----- Accessors -----
+    public Room getRoom() { return room; }
+    public void setRoom(Room room) { this.room = room; }
+
+    public ZonedDateTime getStartTime() { return startTime; }
+    public void setStartTime(ZonedDateTime startTime) { this.startTime = startTime; }
+
+    public ZonedDateTime getEndTime() { return endTime; }
+    public void setEndTime(ZonedDateTime endTime) { this.endTime = endTime; }
+}
@@ -0,0 +1,121 @@
+package org.servantscode.schedule;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+// Finds the earliest times a room, together with any required equipment, is free for a given
+// duration within a window, optionally only between dayStart and dayEnd on each day. Each
+// room's busy intervals are swept in start order and every free gap offers its earliest fitting
+// start (per day, with daily hours), aligned to the step from the window start.
+public class SlotFinder {
+    private final Duration duration;
+    private final ZonedDateTime windowStart;
+    private final ZonedDateTime windowEnd;
+    private final LocalTime dayStart;
+    private final LocalTime dayEnd;
+    private final Duration step;
+
+    private final Map<Reservation.ResourceType, Map<Integer, List<BusyPeriod>>> busy = new EnumMap<>(Reservation.ResourceType.class);
+
+    // dayStart and dayEnd are both null, or dayStart is before dayEnd.
+    public SlotFinder(Duration duration, ZonedDateTime windowStart, ZonedDateTime windowEnd,
+                      LocalTime dayStart, LocalTime dayEnd, Duration step) {
+        this.duration = duration;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.dayStart = dayStart;
+        this.dayEnd = dayEnd;
+        this.step = step;
+    }
+
+    public void addBusy(Reservation.ResourceType type, int resourceId, ZonedDateTime start, ZonedDateTime end) {
+        busy.computeIfAbsent(type, k -> new HashMap<>()).computeIfAbsent(resourceId, k -> new ArrayList<>()).add(new BusyPeriod(start, end));
+    }
+
+    // Up to count candidates ordered by start, then room name.
+    public List<SlotCandidate> find(List<Room> rooms, List<Integer> equipmentIds, int count) {
+        List<BusyPeriod> equipmentBusy = new ArrayList<>();
+        equipmentIds.forEach(id -> equipmentBusy.addAll(busyOf(Reservation.ResourceType.EQUIPMENT, id)));
+
+        List<SlotCandidate> candidates = new ArrayList<>();
+        for(Room room: rooms) {
+            List<BusyPeriod> periods = new ArrayList<>(busyOf(Reservation.ResourceType.ROOM, room.getId()));
+            periods.addAll(equipmentBusy);
+            sweep(room, periods, count, candidates);
+        }
+
+        candidates.sort(Comparator.comparing(SlotCandidate::getStartTime)
+                .thenComparing(c -> c.getRoom().getName(), Comparator.nullsLast(Comparator.naturalOrder())));
+        return candidates.size() > count? new ArrayList<>(candidates.subList(0, count)): candidates;
+    }
+
+    // ----- Private -----
+    private List<BusyPeriod> busyOf(Reservation.ResourceType type, int id) {
+        return busy.getOrDefault(type, Collections.emptyMap()).getOrDefault(id, Collections.emptyList());
+    }
+
+    private void sweep(Room room, List<BusyPeriod> periods, int count, List<SlotCandidate> candidates) {
+        periods.sort(Comparator.comparing(BusyPeriod::getStartTime));
+
+        int found = 0;
+        ZonedDateTime free = windowStart;
+        for(BusyPeriod period: periods) {
+            if(found == count || !free.isBefore(windowEnd))
+                return;
+            if(!period.getEndTime().isAfter(free))
+                continue;
+
+            found += offerGap(room, free, min(period.getStartTime(), windowEnd), count - found, candidates);
+            free = period.getEndTime();
+        }
+
+        if(found < count && free.isBefore(windowEnd))
+            offerGap(room, free, windowEnd, count - found, candidates);
+    }
+
+    // A gap offers its earliest start, and with daily hours also the earliest start of each
+    // later day it spans.
+    private int offerGap(Room room, ZonedDateTime gapStart, ZonedDateTime gapEnd, int limit, List<SlotCandidate> candidates) {
+        int offered = 0;
+        ZonedDateTime slot = earliestIn(gapStart, gapEnd);
+        while(slot != null && offered < limit) {
+            candidates.add(new SlotCandidate(room, slot, slot.plus(duration)));
+            offered++;
+            slot = dayStart == null? null: earliestIn(slot.plusDays(1).with(dayStart), gapEnd);
+        }
+        return offered;
+    }
+
+    // Earliest aligned start in [gapStart, gapEnd) that fits the duration and the daily hours.
+    private ZonedDateTime earliestIn(ZonedDateTime gapStart, ZonedDateTime gapEnd) {
+        ZonedDateTime slot = align(gapStart);
+        while(!slot.plus(duration).isAfter(gapEnd)) {
+            if(dayStart == null)
+                return slot;
+
+            ZonedDateTime open = slot.with(dayStart);
+            ZonedDateTime close = slot.with(dayEnd);
+            if(slot.isBefore(open)) {
+                slot = align(open);
+            } else if(slot.plus(duration).isAfter(close)) {
+                slot = align(slot.plusDays(1).with(dayStart));
+            } else {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private ZonedDateTime align(ZonedDateTime time) {
+        long stepMillis = step.toMillis();
+        long offset = Duration.between(windowStart, time).toMillis();
+        long steps = Math.floorDiv(offset + stepMillis - 1, stepMillis);
+        return windowStart.plus(Duration.ofMillis(steps * stepMillis));
+    }
+
+    private static ZonedDateTime min(ZonedDateTime a, ZonedDateTime b) {
+        return a.isBefore(b)? a: b;
+    }
+}
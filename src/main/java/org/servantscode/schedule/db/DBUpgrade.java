@@ -4,11 +4,46 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.db.AbstractDBUpgrade;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 
 public class DBUpgrade extends AbstractDBUpgrade {
     private static final Logger LOG = LogManager.getLogger(DBUpgrade.class);
 
+    private static final String NO_OVERLAP_CONSTRAINT = "reservation_no_overlap";
+    private static final String NO_OVERLAP_DEFINITION =
+            "EXCLUDE USING gist (resource_type WITH =, resource_id WITH =, period WITH &&) DEFERRABLE INITIALLY IMMEDIATE";
+    // The strict booking constraint's own index covers the same columns, so replaces this one.
+    private static final String PERIOD_INDEX = "reservation_resource_period";
+    private static final String PERIOD_EXPRESSION = "CASE WHEN end_time < start_time THEN NULL ELSE tstzrange(start_time, end_time) END";
+    private static final String EVENT_FK_CONSTRAINT = "reservation_event_fk";
+
+    // Index name -> definition, for the filters and orderings used by EventDB and ReservationDB.
+    static final Map<String, String> INDEXES = new LinkedHashMap<>();
+    static {
+        INDEXES.put("event_org_start_id", "events(org_id, start_time, id)");
+        INDEXES.put("event_recurrence_start", "events(recurring_meeting_id, start_time)");
+        INDEXES.put("event_departments_event_id", "event_departments(event_id)");
+        INDEXES.put("event_categories_event_id", "event_categories(event_id)");
+        INDEXES.put("reservation_event_id", "reservations(event_id)");
+        INDEXES.put("reservation_resource_start", "reservations(resource_type, resource_id, start_time)");
+        INDEXES.put("reservation_start_id", "reservations(start_time, id)");
+        INDEXES.put(PERIOD_INDEX, "reservations USING gist (resource_type, resource_id, period)");
+    }
+
+    // Indexes once in the pack that no query uses any more.
+    static final List<String> RETIRED_INDEXES = singletonList("event_org_modified");
+
     @Override
     public void doUpgrade() throws SQLException {
         LOG.info("Verifying database structures.");
@@ -70,7 +105,14 @@ public class DBUpgrade extends AbstractDBUpgrade {
                                             "frequency INTEGER, " +
                                             "end_date DATE, " +
                                             "weekly_days INTEGER, " +
-                                            "excluded_days TEXT)");
+                                            "excluded_days TEXT, " +
+                                            "start_time TIMESTAMP WITH TIME ZONE)");
+        }
+
+        // Existing series are taken to start at their earliest event, the best record left of it.
+        if(!columnExists("recurrences", "start_time")) {
+            ensureColumn("recurrences", "start_time", "TIMESTAMP WITH TIME ZONE");
+            runSql("UPDATE recurrences r SET start_time=(SELECT min(e.start_time) FROM events e WHERE e.recurring_meeting_id=r.id)");
         }
 
         if(!tableExists("event_departments")) {
@@ -92,5 +134,181 @@ public class DBUpgrade extends AbstractDBUpgrade {
             runSql("UPDATE events SET sacrament_type='BAPTISM' WHERE title ILIKE '%Baptism%' AND title NOT ILIKE '%Prep%'");
             runSql("UPDATE events SET sacrament_type='RECONCILIATION' WHERE title ILIKE '%Confession%'");
         }
+
+        // Half open [start, end) ranges: a zero length reservation is an empty range, which overlaps
+        // nothing and so never conflicts. A reservation ending before it starts has no range at all,
+        // so it neither conflicts nor aborts the upgrade; those are left for an operator to correct.
+        // Adding the generated column rewrites the table under an ACCESS EXCLUSIVE lock; servers
+        // before Postgres 12 have no generated columns and keep the range up to date with a trigger
+        // instead.
+        if(!columnExists("reservations", "period")) {
+            LOG.info("-- Adding reservation period range");
+            runSql("CREATE EXTENSION IF NOT EXISTS btree_gist");
+            if(queryInt("SELECT current_setting('server_version_num')::int") >= 120000) {
+                runSql("ALTER TABLE reservations ADD COLUMN period tstzrange GENERATED ALWAYS AS (" + PERIOD_EXPRESSION + ") STORED");
+            } else {
+                runSql("ALTER TABLE reservations ADD COLUMN period tstzrange");
+                runSql("CREATE OR REPLACE FUNCTION reservation_period() RETURNS trigger AS $$ " +
+                       "BEGIN NEW.period := CASE WHEN NEW.end_time < NEW.start_time THEN NULL ELSE tstzrange(NEW.start_time, NEW.end_time) END; " +
+                       "RETURN NEW; END $$ LANGUAGE plpgsql");
+                runSql("CREATE TRIGGER reservation_period BEFORE INSERT OR UPDATE OF start_time, end_time ON reservations " +
+                       "FOR EACH ROW EXECUTE PROCEDURE reservation_period()");
+                runSql("UPDATE reservations SET period=" + PERIOD_EXPRESSION);
+            }
+        }
+        reportInvertedReservations();
+
+        if(queryInt("SELECT count(1) FROM pg_constraint WHERE conname='" + EVENT_FK_CONSTRAINT + "'") == 0) {
+            LOG.info("-- Linking reservations to events");
+            runSql("UPDATE reservations SET event_id=NULL WHERE event_id <= 0");
+            runSql("DELETE FROM reservations r WHERE event_id IS NOT NULL AND NOT EXISTS (SELECT 1 FROM events e WHERE e.id=r.event_id)");
+            // Added NOT VALID, then validated, so the table isn't locked against writes during the check
+            runSql("ALTER TABLE reservations ADD CONSTRAINT " + EVENT_FK_CONSTRAINT + " " +
+                   "FOREIGN KEY (event_id) REFERENCES events(id) ON DELETE CASCADE NOT VALID");
+            runSql("ALTER TABLE reservations VALIDATE CONSTRAINT " + EVENT_FK_CONSTRAINT);
+        }
+
+        // One version per organization, counted up on any change that shows in its calendar feeds,
+        // so feeds can tell they are current from a single row. Recurrences have no org_id of their
+        // own and are traced through their events.
+        if(!tableExists("feed_versions")) {
+            LOG.info("-- Creating feed_versions table");
+            runSql("CREATE TABLE feed_versions (org_id INTEGER PRIMARY KEY REFERENCES organizations(id) ON DELETE CASCADE, " +
+                                               "version BIGINT NOT NULL)");
+            runSql("CREATE OR REPLACE FUNCTION bump_feed_version() RETURNS trigger AS $$ " +
+                   "DECLARE changed RECORD; org INTEGER; " +
+                   "BEGIN " +
+                   "IF TG_OP = 'DELETE' THEN changed := OLD; ELSE changed := NEW; END IF; " +
+                   "IF TG_TABLE_NAME IN ('events', 'rooms') THEN org := changed.org_id; " +
+                   "ELSIF TG_TABLE_NAME = 'reservations' THEN SELECT e.org_id INTO org FROM events e WHERE e.id = changed.event_id; " +
+                   "ELSE SELECT e.org_id INTO org FROM events e WHERE e.recurring_meeting_id = changed.id LIMIT 1; " +
+                   "END IF; " +
+                   "IF org IS NOT NULL THEN " +
+                   "INSERT INTO feed_versions(org_id, version) VALUES (org, 1) ON CONFLICT (org_id) DO UPDATE SET version = feed_versions.version + 1; " +
+                   "END IF; " +
+                   "RETURN NULL; " +
+                   "END $$ LANGUAGE plpgsql");
+            for(String table: asList("events", "reservations", "recurrences"))
+                runSql("CREATE TRIGGER " + table + "_feed_version AFTER INSERT OR UPDATE OR DELETE ON " + table + " " +
+                       "FOR EACH ROW EXECUTE PROCEDURE bump_feed_version()");
+            // Room names are written into event locations.
+            runSql("CREATE TRIGGER rooms_feed_version AFTER UPDATE OF name OR DELETE ON rooms " +
+                   "FOR EACH ROW EXECUTE PROCEDURE bump_feed_version()");
+        }
+
+        ensureStrictBooking();
+        ensureIndexes();
+    }
+
+    // ----- Private -----
+    // Built CONCURRENTLY so upgrades don't block writes on live tables. A concurrent build that
+    // was interrupted leaves an invalid index behind, which is dropped and rebuilt.
+    private void ensureIndexes() throws SQLException {
+        List<String> invalid = findInvalidIndexes();
+        boolean strict = strictBookingEnabled();
+        for(String retired: RETIRED_INDEXES)
+            runConcurrently("DROP INDEX CONCURRENTLY IF EXISTS " + retired);
+
+        for(Map.Entry<String, String> index: INDEXES.entrySet()) {
+            if(strict && index.getKey().equals(PERIOD_INDEX)) {
+                runConcurrently("DROP INDEX CONCURRENTLY IF EXISTS " + PERIOD_INDEX);
+                continue;
+            }
+
+            if(invalid.contains(index.getKey())) {
+                LOG.info("-- Rebuilding invalid index " + index.getKey());
+                runConcurrently("DROP INDEX CONCURRENTLY IF EXISTS " + index.getKey());
+            }
+            runConcurrently("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + index.getKey() + " ON " + index.getValue());
+        }
+    }
+
+    // CONCURRENTLY can't run inside a transaction block, so rather than trusting the state of a
+    // pooled connection these run on one switched to autocommit, and never within a unit of work.
+    /*package*/ void runConcurrently(String sql) throws SQLException {
+        if(UnitOfWork.isActive())
+            throw new IllegalStateException("Cannot run inside a unit of work: " + sql);
+
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement()) {
+
+            boolean autoCommit = conn.getAutoCommit();
+            if(!autoCommit)
+                conn.setAutoCommit(true);
+            try {
+                stmt.execute(sql);
+            } finally {
+                if(!autoCommit)
+                    conn.setAutoCommit(false);
+            }
+        }
+    }
+
+    // Opt-in with STRICT_BOOKING=true: overlapping reservations of a resource are rejected by the
+    // database itself. Not enabled while existing reservations overlap, since the constraint
+    // could not be built. Deferrable, so series writes can check it once all their rows are in.
+    private void ensureStrictBooking() throws SQLException {
+        boolean strict = Boolean.parseBoolean(System.getenv("STRICT_BOOKING"));
+        boolean enabled = strictBookingEnabled();
+
+        if(strict && enabled && queryInt("SELECT count(1) FROM pg_constraint WHERE conname='" + NO_OVERLAP_CONSTRAINT + "' AND NOT condeferrable") > 0) {
+            // Exclusion constraints can't be altered to deferrable, only rebuilt.
+            LOG.info("-- Rebuilding strict booking constraint as deferrable");
+            runSql("ALTER TABLE reservations DROP CONSTRAINT " + NO_OVERLAP_CONSTRAINT + ", " +
+                   "ADD CONSTRAINT " + NO_OVERLAP_CONSTRAINT + " " + NO_OVERLAP_DEFINITION);
+        } else if(strict && !enabled) {
+            int overlaps = queryInt("SELECT count(1) FROM reservations a JOIN reservations b " +
+                    "ON a.resource_type=b.resource_type AND a.resource_id=b.resource_id AND a.id < b.id AND a.period && b.period");
+            if(overlaps > 0) {
+                LOG.warn("-- Strict booking not enabled: " + overlaps + " pairs of existing reservations overlap.");
+                return;
+            }
+
+            LOG.info("-- Enabling strict booking");
+            runSql("ALTER TABLE reservations ADD CONSTRAINT " + NO_OVERLAP_CONSTRAINT + " " + NO_OVERLAP_DEFINITION);
+        } else if(!strict && enabled) {
+            LOG.info("-- Disabling strict booking");
+            runSql("ALTER TABLE reservations DROP CONSTRAINT " + NO_OVERLAP_CONSTRAINT);
+        }
+    }
+
+    // Which of the two times is wrong can't be told from the row, so they are only reported.
+    private void reportInvertedReservations() throws SQLException {
+        List<Integer> inverted = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM reservations WHERE end_time < start_time ORDER BY id");
+             ResultSet rs = stmt.executeQuery()) {
+
+            while(rs.next())
+                inverted.add(rs.getInt(1));
+        }
+        if(!inverted.isEmpty())
+            LOG.warn("-- " + inverted.size() + " reservations end before they start and are ignored when checking conflicts. " +
+                     "Correct their times: " + inverted);
+    }
+
+    private boolean strictBookingEnabled() throws SQLException {
+        return queryInt("SELECT count(1) FROM pg_constraint WHERE conname='" + NO_OVERLAP_CONSTRAINT + "'") > 0;
+    }
+
+    private int queryInt(String sql) throws SQLException {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+
+            return rs.next()? rs.getInt(1): 0;
+        }
+    }
+
+    private List<String> findInvalidIndexes() throws SQLException {
+        List<String> invalid = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT c.relname FROM pg_index i JOIN pg_class c ON c.oid=i.indexrelid WHERE NOT i.indisvalid");
+             ResultSet rs = stmt.executeQuery()) {
+
+            while(rs.next())
+                invalid.add(rs.getString(1));
+        }
+        return invalid;
     }
 }
@@ -4,7 +4,6 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.AutoCompleteComparator;
 import org.servantscode.commons.db.DBAccess;
-import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.search.InsertBuilder;
 import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.SearchParser;
@@ -13,6 +12,7 @@ import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.Equipment;
 
 import java.sql.*;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,7 +20,7 @@ import static java.lang.String.format;
 import static org.servantscode.commons.StringUtils.isEmpty;
 
 @SuppressWarnings("SqlNoDataSourceInspection")
-public class EquipmentDB extends EasyDB<Equipment> {
+public class EquipmentDB extends ScheduleDB<Equipment> {
     public EquipmentDB() {
         super(Equipment.class, "name");
     }
@@ -33,12 +33,29 @@ public class EquipmentDB extends EasyDB<Equipment> {
         return getOne(selectAll().from("equipment").withId(id).inOrg());
     }
 
+    // The total is only estimated when asked for and when there is no search to narrow it.
+    public ResultPage<Equipment> getEquipmentPage(String search, String sortField, int start, int count, boolean estimateTotal) {
+        if(estimateTotal && isEmpty(search))
+            return new ResultPage<>(getEquipmentList(search, sortField, start, count), estimateCount("equipment"));
+
+        QueryBuilder query = select("*", TOTAL_RESULTS).from("equipment").search(searchParser.parse(search)).inOrg()
+                .page(sortField, start, count);
+        return getPage(query, start, () -> getCount(search));
+    }
+
     public List<Equipment> getEquipmentList(String search, String sortField, int start, int count) {
         QueryBuilder query = selectAll().from("equipment").search(searchParser.parse(search)).inOrg()
                 .page(sortField, start, count);
         return get(query);
     }
 
+    public List<Equipment> getAvailableEquipment(String search, ZonedDateTime start, ZonedDateTime end) {
+        QueryBuilder query = selectAll().from("equipment").search(searchParser.parse(search)).inOrg()
+                .where(format(NOT_RESERVED, "EQUIPMENT", "equipment"), start, end)
+                .sort("name");
+        return get(query);
+    }
+
     public Equipment create(Equipment equipment) {
         InsertBuilder cmd = insertInto("equipment")
                 .value("name", equipment.getName())
@@ -2,27 +2,41 @@ package org.servantscode.schedule.db;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.servantscode.commons.db.EasyDB;
+import org.servantscode.commons.DateUtils;
 import org.servantscode.commons.db.ReportStreamingOutput;
 import org.servantscode.commons.search.*;
 import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.Event;
 import org.servantscode.schedule.Event.SacramentType;
+import org.servantscode.schedule.FeedFingerprint;
+import org.servantscode.schedule.KeysetCursor;
+import org.servantscode.schedule.Reservation;
+import org.servantscode.schedule.ReservationConflictException;
+import org.servantscode.schedule.SeriesDiff;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.*;
+import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static org.servantscode.commons.StringUtils.isEmpty;
 
 @SuppressWarnings("SqlNoDataSourceInspection")
-public class EventDB extends EasyDB<Event> {
+public class EventDB extends ScheduleDB<Event> {
     private static final Logger LOG = LogManager.getLogger(EventDB.class);
 
+    private static final int STREAMING_FETCH_SIZE = 200;
+    private static final int FINGERPRINT_TIMEOUT_SECONDS = 2;
+
     private static final Map<String, String> FIELD_MAP = new HashMap<>(8);
     static {
         FIELD_MAP.put("startTime", "start_time");
@@ -38,14 +52,36 @@ public class EventDB extends EasyDB<Event> {
         FIELD_MAP.put("schedulerId", "e.scheduler_id");
     }
 
+    // Aggregated per returned event, so lookups don't depend on the size of the crosslink tables.
+    static final String DEPARTMENTS_JOIN = "LEFT JOIN LATERAL (SELECT array_agg(d.id) AS department_ids, array_agg(d.name) AS department_names FROM departments d, event_departments ed WHERE d.id=ed.department_id AND ed.event_id=e.id) depts ON true";
+    static final String CATEGORIES_JOIN = "LEFT JOIN LATERAL (SELECT array_agg(c.id) AS category_ids, array_agg(c.name) AS category_names FROM categories c, event_categories cd WHERE c.id=cd.category_id AND cd.event_id=e.id) cats ON true";
+
+    private static final String BULK_INSERT_SQL =
+            "INSERT INTO events(id, recurring_meeting_id, start_time, end_time, title, description, private_event, scheduler_id, " +
+                               "contact_id, ministry_id, attendees, created_time, modified_time, sacrament_type, org_id) " +
+            "SELECT u.*, ? FROM unnest(?::integer[], ?::integer[], ?::timestamptz[], ?::timestamptz[], ?::text[], ?::text[], ?::boolean[], " +
+                                      "?::integer[], ?::integer[], ?::integer[], ?::integer[], ?::timestamptz[], ?::timestamptz[], ?::text[]) AS u";
+
+    // Kept up to date by triggers on events, reservations and recurrences; see DBUpgrade.
+    private static final String DELETE_SERIES_TAIL_SQL =
+            "WITH deleted AS (DELETE FROM events WHERE recurring_meeting_id=? AND start_time >= ? AND org_id=? RETURNING id) " +
+            "SELECT d.id AS event_id, r.id AS reservation_id FROM deleted d LEFT JOIN reservations r ON r.event_id=d.id";
+
+    private static final String FINGERPRINT_SQL = "SELECT version FROM feed_versions WHERE org_id=?";
+
+    private static final String BULK_UPDATE_SQL =
+            "UPDATE events SET recurring_meeting_id=?, start_time=?, end_time=?, title=?, description=?, private_event=?, scheduler_id=?, " +
+                              "contact_id=?, ministry_id=?, attendees=?, modified_time=?, sequence_number=?, sacrament_type=? " +
+            "WHERE id=? AND org_id=?";
+
     public EventDB() {
         super(Event.class,"title", FIELD_MAP);
     }
 
     private QueryBuilder query(QueryBuilder data) {
         return data.from("events e")
-                .join("LEFT JOIN (SELECT array_agg(d.id) AS department_ids, array_agg(d.name) AS department_names, event_id FROM departments d, event_departments ed WHERE d.id=ed.department_id GROUP BY event_id) depts ON depts.event_id=e.id")
-                .join("LEFT JOIN (SELECT array_agg(c.id) AS category_ids, array_agg(c.name) AS category_names, event_id FROM categories c, event_categories cd WHERE c.id=cd.category_id GROUP BY event_id) cats ON cats.event_id=e.id")
+                .join(DEPARTMENTS_JOIN)
+                .join(CATEGORIES_JOIN)
                 .join("LEFT JOIN people contact ON contact_id=contact.id")
                 .join("LEFT JOIN ministries m ON ministry_id=m.id").inOrg("e.org_id");
     }
@@ -54,20 +90,55 @@ public class EventDB extends EasyDB<Event> {
         return select("e.*", "m.name as ministry_name, department_names, department_ids, category_names, category_ids, contact.name AS contact_name, contact.email AS contact_email");
     }
 
+    private QueryBuilder pageData() {
+        return select("e.*", "m.name as ministry_name, department_names, department_ids, category_names, category_ids, contact.name AS contact_name, contact.email AS contact_email",
+                TOTAL_RESULTS);
+    }
+
+    // Room names are aggregated per row so calendar feeds don't need a reservation lookup per event.
+    private QueryBuilder calendarData() {
+        return select("e.*", "m.name as ministry_name, department_names, department_ids, category_names, category_ids, contact.name AS contact_name, contact.email AS contact_email",
+                "(SELECT string_agg(ro.name, ', ' ORDER BY ro.name) FROM reservations r, rooms ro WHERE ro.id=r.resource_id AND r.resource_type='ROOM' AND r.event_id=e.id) AS location");
+    }
+
     public Event getEvent(int id) {
         return getOne(query(allData()).with("e.id", id));
     }
 
+    public boolean ministryExists(int ministryId) {
+        return getCount(count().from("ministries").withId(ministryId).inOrg()) > 0;
+    }
+
     public int getCount(String search) {
         return getCount(query(count()).search(searchParser.parse(search)));
     }
 
+    // The total is only estimated when asked for and when there is no search to narrow it.
+    public ResultPage<Event> getEventPage(String search, String sortField, int start, int count, boolean estimateTotal) {
+        if(estimateTotal && isEmpty(search))
+            return new ResultPage<>(getEvents(search, sortField, start, count), estimateCount("events"));
+
+        QueryBuilder query = query(pageData()).search(searchParser.parse(search))
+                .page(sortField, start, count);
+        return getPage(query, start, () -> getCount(search));
+    }
+
     public List<Event> getEvents(String search, String sortField, int start, int count) {
         QueryBuilder query = query(allData()).search(searchParser.parse(search))
                 .page(sortField, start, count);
         return get(query);
     }
 
+    // Seeks past the cursor on (start_time, id) so every page costs the same as the first.
+    public List<Event> getEventsAfter(String search, KeysetCursor after, int count) {
+        // Rows without a start time have no place in the keyset order.
+        QueryBuilder query = query(allData()).search(searchParser.parse(search)).where("e.start_time IS NOT NULL");
+        if(after != null)
+            query.where("(e.start_time, e.id) > (?, ?)", after.getStartTime(), after.getId());
+        query.page("e.start_time, e.id", 0, count);
+        return get(query);
+    }
+
     public List<Event> getEventsById(List<Integer> ids) {
         QueryBuilder query = query(allData()).withAny("e.id", ids);
         return get(query);
@@ -87,6 +158,34 @@ public class EventDB extends EasyDB<Event> {
         return get(query);
     }
 
+    // Ids of a series' events starting at or after from, only those on the given days when any are given.
+    public List<Integer> getRecurringEventIds(int recurrenceId, ZonedDateTime from, List<LocalDate> onDays) {
+        QueryBuilder query = select("id").from("events")
+                .with("recurring_meeting_id", recurrenceId)
+                .where("start_time >= ?", from).inOrg();
+        if(onDays != null && !onDays.isEmpty()) {
+            List<Object> bounds = new ArrayList<>();
+            for(LocalDate day: onDays) {
+                ZonedDateTime start = day.atStartOfDay(DateUtils.getTimeZone());
+                bounds.add(start);
+                bounds.add(start.plusDays(1));
+            }
+            query.where(onDays.stream().map(day -> "(start_time >= ? AND start_time < ?)").collect(Collectors.joining(" OR ", "(", ")")), bounds.toArray());
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            while(rs.next())
+                ids.add(rs.getInt(1));
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve events of recurrence " + recurrenceId, e);
+        }
+        return ids;
+    }
+
     public List<ZonedDateTime> getFutureEvents(Event event) {
         QueryBuilder query = select("start_time").from("events")
                 .where("recurring_meeting_id=?", event.getRecurringMeetingId())
@@ -106,6 +205,45 @@ public class EventDB extends EasyDB<Event> {
         }
     }
 
+    // Query is built immediately (in the caller's org context) and run when the stream is consumed.
+    // Rows are read through a server side cursor so only one fetch worth of events is held in memory.
+    public EventStream streamEvents(String search, String sortField) {
+        QueryBuilder query = query(allData()).search(searchParser.parse(search)).sort(sortField);
+        return processor -> streamRows(query, search, rs -> processor.accept(processRow(rs)));
+    }
+
+    // Same as streamEvents, with each event's room names resolved into its location. Limited to
+    // events booking the given room and of the given ministry, when positive.
+    public EventStream streamCalendarEvents(String search, String sortField, int roomId, int ministryId) {
+        QueryBuilder query = query(calendarData()).search(searchParser.parse(search));
+        if(roomId > 0)
+            query.where("EXISTS (SELECT 1 FROM reservations r WHERE r.event_id=e.id AND r.resource_type='ROOM' AND r.resource_id=?)", roomId);
+        if(ministryId > 0)
+            query.where("e.ministry_id=?", ministryId);
+        query.sort(sortField);
+        return processor -> streamRows(query, search, rs -> {
+            Event e = processRow(rs);
+            e.setLocation(rs.getString("location"));
+            processor.accept(e);
+        });
+    }
+
+    // A single row lookup, time limited so callers holding a cached copy can fall back to it when
+    // the database is struggling.
+    public FeedFingerprint getFeedFingerprint() {
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(FINGERPRINT_SQL)) {
+
+            stmt.setInt(1, OrganizationContext.orgId());
+            stmt.setQueryTimeout(FINGERPRINT_TIMEOUT_SECONDS);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return new FeedFingerprint(rs.next()? rs.getLong("version"): 0);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not fingerprint events", e);
+        }
+    }
+
     public StreamingOutput getReportReader(String search, final List<String> fields) {
         final QueryBuilder query = query(allData()).search(searchParser.parse(search));
 
@@ -150,6 +288,66 @@ public class EventDB extends EasyDB<Event> {
         return event;
     }
 
+    // Writes a whole series with its crosslinks and reservations in one transaction: one
+    // statement per table instead of several round trips per event. Ids are drawn from the
+    // sequences up front so rows are matched to events without relying on RETURNING order.
+    public List<Event> createSeries(List<Event> events) {
+        List<Reservation> reservations = new ArrayList<>();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                ReservationDB.deferOverlapChecks(conn);
+                insertSeries(conn, events, reservations);
+                ReservationDB.checkOverlaps(conn);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            if(ReservationDB.isExclusionViolation(e))
+                throw seriesConflict(reservations, events.get(0).getRecurringMeetingId(), e);
+            throw new RuntimeException("Could not create series of " + events.size() + " events", e);
+        }
+        return events;
+    }
+
+    // Applies only the changes listed in the diff, in one transaction with one statement or
+    // batch per kind of change. Overlaps are checked once every row is written, since occurrences
+    // are rewritten one at a time and a shifted series passes through its own slots.
+    public void updateSeries(SeriesDiff diff, int recurrenceId) {
+        List<Reservation> written = new ArrayList<>(diff.getUpdatedReservations());
+        written.addAll(diff.getCreatedReservations());
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                ReservationDB.deferOverlapChecks(conn);
+                ReservationDB.deleteAll(conn, diff.getDeletedReservationIds());
+                deleteEvents(conn, diff.getDeletedEventIds());
+                updateEvents(conn, diff.getUpdatedEvents());
+                deleteCrosslinks(conn, diff.getRelinkedEvents());
+                insertCrosslinks(conn, "event_departments", "department_id", diff.getRelinkedEvents(), Event::getDepartmentIds);
+                insertCrosslinks(conn, "event_categories", "category_id", diff.getRelinkedEvents(), Event::getCategoryIds);
+                ReservationDB.updateAll(conn, diff.getUpdatedReservations());
+                ReservationDB.insertAll(conn, diff.getCreatedReservations());
+                insertSeries(conn, diff.getCreatedEvents(), written);
+                ReservationDB.checkOverlaps(conn);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            if(ReservationDB.isExclusionViolation(e))
+                throw seriesConflict(written, recurrenceId, e);
+            throw new RuntimeException("Could not update series " + recurrenceId, e);
+        }
+    }
+
     public Event updateEvent(Event event) {
         event.setModifiedTime(ZonedDateTime.now());
         event.incrementSequenceNumber();
@@ -181,7 +379,62 @@ public class EventDB extends EasyDB<Event> {
         return delete(deleteFrom("events").withId(id).inOrg());
     }
 
+    // Deletes the series from the given time on. Reservations go with their events (ON DELETE
+    // CASCADE); the join still sees them, as it reads from before the delete. Returns the ids of
+    // the deleted events, each with the ids of its deleted reservations.
+    public Map<Integer, List<Integer>> deleteRecurringEvents(int recurrenceId, ZonedDateTime from) {
+        Map<Integer, List<Integer>> deleted = new LinkedHashMap<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(DELETE_SERIES_TAIL_SQL)) {
+
+            stmt.setInt(1, recurrenceId);
+            stmt.setTimestamp(2, convert(from));
+            stmt.setInt(3, OrganizationContext.orgId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while(rs.next()) {
+                    List<Integer> reservationIds = deleted.computeIfAbsent(rs.getInt("event_id"), k -> new ArrayList<>());
+                    int reservationId = rs.getInt("reservation_id");
+                    if(!rs.wasNull())
+                        reservationIds.add(reservationId);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not delete events of recurrence " + recurrenceId, e);
+        }
+        return deleted;
+    }
+
+    public interface EventStream {
+        void forEach(Consumer<Event> processor);
+    }
+
     // ----- Private -----
+    private interface RowProcessor {
+        void process(ResultSet rs) throws SQLException;
+    }
+
+    private void streamRows(QueryBuilder query, String search, RowProcessor processor) {
+        try (Connection conn = getConnection()) {
+            //Postgres only honors the fetch size inside of a transaction.
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = query.prepareStatement(conn)) {
+                stmt.setFetchSize(STREAMING_FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        processor.process(rs);
+                }
+            } finally {
+                // Inside a unit of work the transaction is the unit's; rolling it back would discard its writes.
+                if(!UnitOfWork.isActive()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not stream events containing '" + search + "'", e);
+        }
+    }
+
     @Override
     protected Event processRow(ResultSet rs) throws SQLException {
         Event e = new Event();
@@ -230,6 +483,184 @@ public class EventDB extends EasyDB<Event> {
         return new SearchParser<>(Event.class, "title", FIELD_MAP).parse(search);
     }
 
+    // Inserts new events with their crosslinks and reservations, adding the reservations to the given list.
+    private void insertSeries(Connection conn, List<Event> events, List<Reservation> reservations) throws SQLException {
+        if(events.isEmpty())
+            return;
+
+        ZonedDateTime now = ZonedDateTime.now();
+        List<Reservation> created = new ArrayList<>();
+        List<Integer> ids = allocateIds(conn, "events", events.size());
+        for(int i=0; i<events.size(); i++) {
+            Event event = events.get(i);
+            event.setId(ids.get(i));
+            event.setCreatedTime(now);
+            event.setModifiedTime(now);
+            if(event.getReservations() != null) {
+                event.getReservations().forEach(res -> res.setEventId(event.getId()));
+                created.addAll(event.getReservations());
+            }
+        }
+        reservations.addAll(created);
+
+        insertEvents(conn, events);
+        insertCrosslinks(conn, "event_departments", "department_id", events, Event::getDepartmentIds);
+        insertCrosslinks(conn, "event_categories", "category_id", events, Event::getCategoryIds);
+        ReservationDB.insertAll(conn, created);
+    }
+
+    private void updateEvents(Connection conn, List<Event> events) throws SQLException {
+        if(events.isEmpty())
+            return;
+
+        Timestamp now = convert(ZonedDateTime.now());
+        try (PreparedStatement stmt = conn.prepareStatement(BULK_UPDATE_SQL)) {
+            for(Event event: events) {
+                stmt.setInt(1, event.getRecurringMeetingId());
+                stmt.setTimestamp(2, convert(event.getStartTime()));
+                stmt.setTimestamp(3, convert(event.getEndTime()));
+                stmt.setString(4, event.getTitle());
+                stmt.setString(5, event.getDescription());
+                stmt.setBoolean(6, event.isPrivateEvent());
+                stmt.setInt(7, event.getSchedulerId());
+                setOptionalId(stmt, 8, event.getContactId());
+                setOptionalId(stmt, 9, event.getMinistryId());
+                stmt.setInt(10, event.getAttendees());
+                stmt.setTimestamp(11, now);
+                stmt.setInt(12, event.getSequenceNumber());
+                stmt.setString(13, event.getSacramentType() != null ? event.getSacramentType().toString() : null);
+                stmt.setInt(14, event.getId());
+                stmt.setInt(15, OrganizationContext.orgId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private static void setOptionalId(PreparedStatement stmt, int index, int id) throws SQLException {
+        if(id > 0)
+            stmt.setInt(index, id);
+        else
+            stmt.setNull(index, Types.INTEGER);
+    }
+
+    private void deleteEvents(Connection conn, List<Integer> ids) throws SQLException {
+        if(ids.isEmpty())
+            return;
+
+        Array idArray = conn.createArrayOf("integer", ids.toArray());
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM reservations WHERE event_id = ANY(?)")) {
+            stmt.setArray(1, idArray);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM events WHERE id = ANY(?) AND org_id=?")) {
+            stmt.setArray(1, idArray);
+            stmt.setInt(2, OrganizationContext.orgId());
+            stmt.executeUpdate();
+        }
+    }
+
+    private static void deleteCrosslinks(Connection conn, List<Event> events) throws SQLException {
+        if(events.isEmpty())
+            return;
+
+        Array idArray = conn.createArrayOf("integer", events.stream().map(Event::getId).toArray());
+        for(String table: asList("event_departments", "event_categories")) {
+            try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + table + " WHERE event_id = ANY(?)")) {
+                stmt.setArray(1, idArray);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    private void insertEvents(Connection conn, List<Event> events) throws SQLException {
+        int size = events.size();
+        Integer[] ids = new Integer[size];
+        Integer[] recurrenceIds = new Integer[size];
+        Timestamp[] starts = new Timestamp[size];
+        Timestamp[] ends = new Timestamp[size];
+        String[] titles = new String[size];
+        String[] descriptions = new String[size];
+        Boolean[] privateEvents = new Boolean[size];
+        Integer[] schedulerIds = new Integer[size];
+        Integer[] contactIds = new Integer[size];
+        Integer[] ministryIds = new Integer[size];
+        Integer[] attendees = new Integer[size];
+        Timestamp[] created = new Timestamp[size];
+        Timestamp[] modified = new Timestamp[size];
+        String[] sacramentTypes = new String[size];
+        for(int i=0; i<size; i++) {
+            Event event = events.get(i);
+            ids[i] = event.getId();
+            recurrenceIds[i] = event.getRecurringMeetingId();
+            starts[i] = convert(event.getStartTime());
+            ends[i] = convert(event.getEndTime());
+            titles[i] = event.getTitle();
+            descriptions[i] = event.getDescription();
+            privateEvents[i] = event.isPrivateEvent();
+            schedulerIds[i] = event.getSchedulerId();
+            contactIds[i] = event.getContactId() > 0 ? event.getContactId() : null;
+            ministryIds[i] = event.getMinistryId() > 0 ? event.getMinistryId() : null;
+            attendees[i] = event.getAttendees();
+            created[i] = convert(event.getCreatedTime());
+            modified[i] = convert(event.getModifiedTime());
+            sacramentTypes[i] = event.getSacramentType() != null ? event.getSacramentType().toString() : null;
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(BULK_INSERT_SQL)) {
+            stmt.setInt(1, OrganizationContext.orgId());
+            stmt.setArray(2, conn.createArrayOf("integer", ids));
+            stmt.setArray(3, conn.createArrayOf("integer", recurrenceIds));
+            stmt.setArray(4, conn.createArrayOf("timestamptz", starts));
+            stmt.setArray(5, conn.createArrayOf("timestamptz", ends));
+            stmt.setArray(6, conn.createArrayOf("text", titles));
+            stmt.setArray(7, conn.createArrayOf("text", descriptions));
+            stmt.setArray(8, conn.createArrayOf("boolean", privateEvents));
+            stmt.setArray(9, conn.createArrayOf("integer", schedulerIds));
+            stmt.setArray(10, conn.createArrayOf("integer", contactIds));
+            stmt.setArray(11, conn.createArrayOf("integer", ministryIds));
+            stmt.setArray(12, conn.createArrayOf("integer", attendees));
+            stmt.setArray(13, conn.createArrayOf("timestamptz", created));
+            stmt.setArray(14, conn.createArrayOf("timestamptz", modified));
+            stmt.setArray(15, conn.createArrayOf("text", sacramentTypes));
+            stmt.executeUpdate();
+        }
+    }
+
+    private static void insertCrosslinks(Connection conn, String table, String column, List<Event> events,
+                                         Function<Event, List<Integer>> links) throws SQLException {
+        List<Integer> eventIds = new ArrayList<>();
+        List<Integer> linkIds = new ArrayList<>();
+        for(Event event: events) {
+            List<Integer> ids = links.apply(event);
+            if(ids == null)
+                continue;
+            for(Integer id: ids) {
+                eventIds.add(event.getId());
+                linkIds.add(id);
+            }
+        }
+        if(eventIds.isEmpty())
+            return;
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + table + "(event_id, " + column + ") SELECT * FROM unnest(?::integer[], ?::integer[])")) {
+            stmt.setArray(1, conn.createArrayOf("integer", eventIds.toArray()));
+            stmt.setArray(2, conn.createArrayOf("integer", linkIds.toArray()));
+            stmt.executeUpdate();
+        }
+    }
+
+    // Strict booking rejected the series. Nothing was written, so the conflicts are looked up
+    // against what is already booked.
+    private RuntimeException seriesConflict(List<Reservation> reservations, int recurrenceId, SQLException cause) {
+        List<List<Reservation>> conflicts = new ReservationDB().getConflicts(reservations, recurrenceId);
+        for(int i=0; i<reservations.size(); i++) {
+            if(!conflicts.get(i).isEmpty())
+                return new ReservationConflictException(reservations.get(i), conflicts.get(i));
+        }
+        return new RuntimeException("Reservations of the series overlap each other", cause);
+    }
+
     private void processEventCrosslinks(Event event) {
         try (Connection conn = getConnection()) {
             crossReferenceDepartments(conn, event.getId(), event.getDepartmentIds());
@@ -3,7 +3,6 @@ package org.servantscode.schedule.db;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.db.DBAccess;
-import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.search.InsertBuilder;
 import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.UpdateBuilder;
@@ -22,7 +21,7 @@ import java.util.stream.Collectors;
 import static java.util.Collections.emptyList;
 import static org.servantscode.commons.StringUtils.isEmpty;
 
-public class RecurrenceDB extends EasyDB<Recurrence> {
+public class RecurrenceDB extends ScheduleDB<Recurrence> {
     private static final Logger LOG = LogManager.getLogger(RecurrenceDB.class);
 
     public RecurrenceDB() {
@@ -36,8 +35,8 @@ public class RecurrenceDB extends EasyDB<Recurrence> {
     public List<Recurrence> getEventRecurrences(String search) {
         QueryBuilder query = selectAll().from("recurrences")
                 .whereIdIn("id", select("DISTINCT e.recurring_meeting_id").from("events e")
-                        .join("LEFT JOIN (SELECT array_agg(d.id) AS department_ids, array_agg(d.name) AS department_names, event_id FROM departments d, event_departments ed WHERE d.id=ed.department_id GROUP BY event_id) depts ON depts.event_id=e.id")
-                        .join("LEFT JOIN (SELECT array_agg(c.id) AS category_ids, array_agg(c.name) AS category_names, event_id FROM categories c, event_categories cd WHERE c.id=cd.category_id GROUP BY event_id) cats ON cats.event_id=e.id")
+                        .join(EventDB.DEPARTMENTS_JOIN)
+                        .join(EventDB.CATEGORIES_JOIN)
                         .join("LEFT JOIN ministries m ON ministry_id=m.id").inOrg("e.org_id").search(EventDB.parseSearch(search)));
         return get(query);
     }
@@ -54,7 +53,8 @@ public class RecurrenceDB extends EasyDB<Recurrence> {
                 .value("frequency", recurrence.getFrequency())
                 .value("end_date", convert(recurrence.getEndDate()))
                 .value("weekly_days", encodeDays(recurrence.getWeeklyDays()))
-                .value("excluded_days", encodeDateList(recurrence.getExceptionDates()));
+                .value("excluded_days", encodeDateList(recurrence.getExceptionDates()))
+                .value("start_time", convert(recurrence.getStartTime()));
         recurrence.setId(createAndReturnKey(cmd));
         return recurrence;
     }
@@ -66,6 +66,7 @@ public class RecurrenceDB extends EasyDB<Recurrence> {
                 .value("end_date", convert(recurrence.getEndDate()))
                 .value("weekly_days", encodeDays(recurrence.getWeeklyDays()))
                 .value("excluded_days", encodeDateList(recurrence.getExceptionDates()))
+                .value("start_time", convert(recurrence.getStartTime()))
                 .withId(recurrence.getId());
         if (!update(cmd))
             throw new RuntimeException("Could not update " + recurrence.getCycle() + " recurrence.");
@@ -108,6 +109,7 @@ public class RecurrenceDB extends EasyDB<Recurrence> {
         r.setEndDate(convert(rs.getDate("end_date")));
         r.setWeeklyDays(decodeDays(rs.getInt("weekly_days")));
         r.setExceptionDates(decodeDateList(rs.getString("excluded_days")));
+        r.setStartTime(convert(rs.getTimestamp("start_time")));
         return r;
     }
 
@@ -3,11 +3,13 @@ package org.servantscode.schedule.db;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.db.DBAccess;
-import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.search.InsertBuilder;
 import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.UpdateBuilder;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.schedule.KeysetCursor;
 import org.servantscode.schedule.Reservation;
+import org.servantscode.schedule.ReservationConflictException;
 
 import java.sql.*;
 import java.time.ZonedDateTime;
@@ -15,9 +17,40 @@ import java.util.ArrayList;
 import java.util.List;
 
 @SuppressWarnings("SqlNoDataSourceInspection")
-public class ReservationDB extends EasyDB<Reservation> {
+public class ReservationDB extends ScheduleDB<Reservation> {
     private static final Logger LOG = LogManager.getLogger(ReservationDB.class);
 
+    // Served by the GiST index on (resource_type, resource_id, period).
+    private static final String OVERLAPS = "r.period && tstzrange(CAST(? AS timestamptz), CAST(? AS timestamptz))";
+
+    private static final String EXCLUSION_VIOLATION = "23P01";
+
+    private static final String CONFLICT_SQL =
+            "SELECT c.candidate, r.*, COALESCE(ro.name, e.name) as resource_name, ev.title, ev.private_event, ev.scheduler_id, p.name AS reserver_name " +
+            "FROM unnest(?::integer[], ?::text[], ?::integer[], ?::timestamptz[], ?::timestamptz[]) AS c(candidate, c_type, c_resource_id, c_start, c_end) " +
+            "JOIN reservations r ON r.resource_type=c.c_type AND r.resource_id=c.c_resource_id AND r.period && tstzrange(c.c_start, c.c_end) " +
+            "LEFT JOIN rooms ro ON ro.id = r.resource_id AND r.resource_type='ROOM' " +
+            "LEFT JOIN equipment e ON e.id = r.resource_id AND r.resource_type='EQUIPMENT' " +
+            "LEFT JOIN events ev ON r.event_id = ev.id " +
+            "LEFT JOIN people p ON r.reserving_person_id = p.id " +
+            "WHERE ev.recurring_meeting_id <> ? " +
+            "ORDER BY c.candidate, r.start_time";
+
+    // Ids of rooms or equipment outside the organization match nothing.
+    private static final String RESERVED_PERIODS_SQL =
+            "SELECT r.resource_type, r.resource_id, r.start_time, r.end_time FROM reservations r " +
+            "LEFT JOIN rooms ro ON ro.id = r.resource_id AND r.resource_type='ROOM' " +
+            "LEFT JOIN equipment e ON e.id = r.resource_id AND r.resource_type='EQUIPMENT' " +
+            "WHERE ((r.resource_type='ROOM' AND r.resource_id = ANY(?)) OR (r.resource_type='EQUIPMENT' AND r.resource_id = ANY(?))) " +
+            "AND COALESCE(ro.org_id, e.org_id) = ? AND " + OVERLAPS;
+
+    private static final String NOT_IN_RECURRENCE =
+            " AND NOT EXISTS (SELECT 1 FROM events ev WHERE ev.id = r.event_id AND ev.recurring_meeting_id = ?)";
+
+    private static final String BULK_INSERT_SQL =
+            "INSERT INTO reservations(id, resource_type, resource_id, reserving_person_id, event_id, start_time, end_time) " +
+            "SELECT * FROM unnest(?::integer[], ?::text[], ?::integer[], ?::integer[], ?::integer[], ?::timestamptz[], ?::timestamptz[])";
+
     public ReservationDB() {
         super(Reservation.class, "ev.title");
     }
@@ -33,25 +66,20 @@ public class ReservationDB extends EasyDB<Reservation> {
 
     public List<Reservation> getReservations(ZonedDateTime start, ZonedDateTime end, int eventId, int personId,
                                              Reservation.ResourceType resourceType, int resourceId) {
-        QueryBuilder query = queryData();
-        if(start != null)
-            query.where("NOT (r.start_time <= ? AND r.end_time <= ?) AND NOT (r.start_time >= ? AND r.end_time >= ?)",
-                start, start, end, end);
-        if(eventId > 0) query.where("event_id=?", eventId);
-        if(personId > 0) query.where("reserving_person_id=?", personId);
-        if(resourceType != null) query.where("resource_type=?", resourceType.toString());
-        if(resourceId > 0) query.where("resource_id=?", resourceId);
+        QueryBuilder query = filter(start, end, eventId, personId, resourceType, resourceId);
         query.sort("start_time");
 
         return get(query);
     }
 
-    public List<Reservation> getEventReservations(String search) {
-        QueryBuilder query = queryData()
-                .whereIdIn("r.event_id", select("e.id").from("events e")
-                        .join("LEFT JOIN (SELECT array_agg(d.id) AS department_ids, array_agg(d.name) AS department_names, event_id FROM departments d, event_departments ed WHERE d.id=ed.department_id GROUP BY event_id) depts ON depts.event_id=e.id")
-                        .join("LEFT JOIN (SELECT array_agg(c.id) AS category_ids, array_agg(c.name) AS category_names, event_id FROM categories c, event_categories cd WHERE c.id=cd.category_id GROUP BY event_id) cats ON cats.event_id=e.id")
-                        .join("LEFT JOIN ministries m ON ministry_id=m.id").inOrg("e.org_id").search(EventDB.parseSearch(search)));
+    // Seeks past the cursor on (start_time, id) so every page costs the same as the first.
+    public List<Reservation> getReservationsAfter(ZonedDateTime start, ZonedDateTime end, int eventId, int personId,
+                                                  Reservation.ResourceType resourceType, int resourceId,
+                                                  KeysetCursor after, int count) {
+        QueryBuilder query = filter(start, end, eventId, personId, resourceType, resourceId).where("r.start_time IS NOT NULL");
+        if(after != null)
+            query.where("(r.start_time, r.id) > (?, ?)", after.getStartTime(), after.getId());
+        query.page("r.start_time, r.id", 0, count);
 
         return get(query);
     }
@@ -68,17 +96,109 @@ public class ReservationDB extends EasyDB<Reservation> {
         return get(queryData().where("resource_type=?", type.toString()).where("resource_id=?", id));
     }
 
+    // Only the type, resource and times of reservations of the given rooms and equipment of the
+    // organization overlapping the window, in start order.
+    public List<Reservation> getReservedPeriods(List<Integer> roomIds, List<Integer> equipmentIds, ZonedDateTime start, ZonedDateTime end) {
+        return getReservedPeriods(roomIds, equipmentIds, start, end, 0);
+    }
+
+    // As above, leaving out reservations of events in the given recurrence (when positive).
+    public List<Reservation> getReservedPeriods(List<Integer> roomIds, List<Integer> equipmentIds, ZonedDateTime start, ZonedDateTime end,
+                                                int excludeRecurrenceId) {
+        List<Reservation> periods = new ArrayList<>();
+        if(roomIds.isEmpty() && equipmentIds.isEmpty())
+            return periods;
+
+        String sql = RESERVED_PERIODS_SQL + (excludeRecurrenceId > 0? NOT_IN_RECURRENCE: "") + " ORDER BY r.start_time";
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setArray(1, conn.createArrayOf("integer", roomIds.toArray()));
+            stmt.setArray(2, conn.createArrayOf("integer", equipmentIds.toArray()));
+            stmt.setInt(3, OrganizationContext.orgId());
+            stmt.setTimestamp(4, convert(start));
+            stmt.setTimestamp(5, convert(end));
+            if(excludeRecurrenceId > 0)
+                stmt.setInt(6, excludeRecurrenceId);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Reservation res = new Reservation();
+                    res.setResourceType(Reservation.ResourceType.valueOf(rs.getString("resource_type")));
+                    res.setResourceId(rs.getInt("resource_id"));
+                    res.setStartTime(convert(rs.getTimestamp("start_time")));
+                    res.setEndTime(convert(rs.getTimestamp("end_time")));
+                    periods.add(res);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve reserved periods of rooms " + roomIds + " and equipment " + equipmentIds, e);
+        }
+        return periods;
+    }
+
+
+    // Reservations of the organization's rooms and equipment that end after the given time.
+    public List<Reservation> getUpcomingReservations(ZonedDateTime from) {
+        QueryBuilder query = queryData()
+                .where("r.end_time > ?", from)
+                .where("COALESCE(ro.org_id, e.org_id) = ?", OrganizationContext.orgId());
+        return get(query);
+    }
+
     public Reservation getReservation(int id) {
         return getOne(queryData().with("r.id", id));
     }
 
-    public List<Reservation> getConflicts(Reservation res, int recurrenceId) {
+    // Checks every candidate in a single statement. Result i holds the conflicts of candidate i.
+    public List<List<Reservation>> getConflicts(List<Reservation> candidates, int recurrenceId) {
+        List<List<Reservation>> conflicts = new ArrayList<>(candidates.size());
+        candidates.forEach(c -> conflicts.add(new ArrayList<>()));
+        if(candidates.isEmpty())
+            return conflicts;
+
+        int size = candidates.size();
+        Integer[] indexes = new Integer[size];
+        String[] types = new String[size];
+        Integer[] resourceIds = new Integer[size];
+        Timestamp[] starts = new Timestamp[size];
+        Timestamp[] ends = new Timestamp[size];
+        for(int i=0; i<size; i++) {
+            Reservation res = candidates.get(i);
+            indexes[i] = i;
+            types[i] = res.getResourceType().toString();
+            resourceIds[i] = res.getResourceId();
+            starts[i] = convert(res.getStartTime());
+            ends[i] = convert(res.getEndTime());
+        }
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(CONFLICT_SQL)) {
+
+            stmt.setArray(1, conn.createArrayOf("integer", indexes));
+            stmt.setArray(2, conn.createArrayOf("text", types));
+            stmt.setArray(3, conn.createArrayOf("integer", resourceIds));
+            stmt.setArray(4, conn.createArrayOf("timestamptz", starts));
+            stmt.setArray(5, conn.createArrayOf("timestamptz", ends));
+            stmt.setInt(6, recurrenceId);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while(rs.next())
+                    conflicts.get(rs.getInt("candidate")).add(processRow(rs));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not check conflicts for " + size + " reservations", e);
+        }
+        return conflicts;
+    }
+
+    // Overlapping reservations of the same resource, other than the given one.
+    public List<Reservation> getOverlapping(Reservation res) {
         QueryBuilder query = queryData()
-                .where("NOT (r.start_time <= ? AND r.end_time <= ?) AND NOT (r.start_time >= ? AND r.end_time >= ?)",
-                        res.getStartTime(), res.getStartTime(), res.getEndTime(), res.getEndTime())
+                .where(OVERLAPS, res.getStartTime(), res.getEndTime())
                 .where("r.resource_type = ?", res.getResourceType().toString())
                 .where("r.resource_id = ?", res.getResourceId())
-                .where("ev.recurring_meeting_id <> ?", recurrenceId)
+                .where("r.id <> ?", res.getId())
                 .sort("r.start_time");
 
         return get(query);
@@ -89,10 +209,14 @@ public class ReservationDB extends EasyDB<Reservation> {
                 .value("resource_type", reservation.getResourceType())
                 .value("resource_id", reservation.getResourceId())
                 .value("reserving_person_id", reservation.getReservingPersonId())
-                .value("event_id", reservation.getEventId())
+                .value("event_id", reservation.getEventId() > 0? reservation.getEventId(): null)
                 .value("start_time", convert(reservation.getStartTime()))
                 .value("end_time", convert(reservation.getEndTime()));
-        reservation.setId(createAndReturnKey(cmd));
+        try {
+            reservation.setId(createAndReturnKey(cmd));
+        } catch (RuntimeException e) {
+            throw conflictOr(e, reservation);
+        }
         return reservation;
     }
 
@@ -101,12 +225,18 @@ public class ReservationDB extends EasyDB<Reservation> {
                 .value("resource_type", reservation.getResourceType())
                 .value("resource_id", reservation.getResourceId())
                 .value("reserving_person_id", reservation.getReservingPersonId())
-                .value("event_id", reservation.getEventId())
+                .value("event_id", reservation.getEventId() > 0? reservation.getEventId(): null)
                 .value("start_time", convert(reservation.getStartTime()))
                 .value("end_time", convert(reservation.getEndTime()))
                 .withId(reservation.getId());
 
-        if (!update(cmd))
+        boolean updated;
+        try {
+            updated = update(cmd);
+        } catch (RuntimeException e) {
+            throw conflictOr(e, reservation);
+        }
+        if (!updated)
             throw new RuntimeException("Could not update reservation for " + reservation.getResourceType() + ": " + reservation.getResourceId());
 
         return reservation;
@@ -120,7 +250,118 @@ public class ReservationDB extends EasyDB<Reservation> {
         return delete(deleteFrom("reservations").with("event_id", eventId));
     }
 
+    // Inserts all reservations with one statement on the caller's connection.
+    static void insertAll(Connection conn, List<Reservation> reservations) throws SQLException {
+        int size = reservations.size();
+        if(size == 0)
+            return;
+
+        List<Integer> ids = ScheduleDB.allocateIds(conn, "reservations", size);
+        String[] types = new String[size];
+        Integer[] resourceIds = new Integer[size];
+        Integer[] reserverIds = new Integer[size];
+        Integer[] eventIds = new Integer[size];
+        Timestamp[] starts = new Timestamp[size];
+        Timestamp[] ends = new Timestamp[size];
+        for(int i=0; i<size; i++) {
+            Reservation res = reservations.get(i);
+            types[i] = res.getResourceType().toString();
+            resourceIds[i] = res.getResourceId();
+            reserverIds[i] = res.getReservingPersonId();
+            eventIds[i] = res.getEventId() > 0? res.getEventId(): null;
+            starts[i] = convert(res.getStartTime());
+            ends[i] = convert(res.getEndTime());
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(BULK_INSERT_SQL)) {
+            stmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+            stmt.setArray(2, conn.createArrayOf("text", types));
+            stmt.setArray(3, conn.createArrayOf("integer", resourceIds));
+            stmt.setArray(4, conn.createArrayOf("integer", reserverIds));
+            stmt.setArray(5, conn.createArrayOf("integer", eventIds));
+            stmt.setArray(6, conn.createArrayOf("timestamptz", starts));
+            stmt.setArray(7, conn.createArrayOf("timestamptz", ends));
+            stmt.executeUpdate();
+        }
+
+        for(int i=0; i<size; i++)
+            reservations.get(i).setId(ids.get(i));
+    }
+
+    // Reservations matched to an existing row keep their resource and event; only the reserver
+    // and times are rewritten.
+    static void updateAll(Connection conn, List<Reservation> reservations) throws SQLException {
+        if(reservations.isEmpty())
+            return;
+
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE reservations SET reserving_person_id=?, start_time=?, end_time=? WHERE id=?")) {
+            for(Reservation res: reservations) {
+                stmt.setInt(1, res.getReservingPersonId());
+                stmt.setTimestamp(2, convert(res.getStartTime()));
+                stmt.setTimestamp(3, convert(res.getEndTime()));
+                stmt.setInt(4, res.getId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    // Strict booking's constraint is deferrable. Writes that rewrite a series in place, e.g.
+    // moving it by one interval, leave rows briefly overlapping their neighbours, so the check
+    // waits until all of them are written.
+    static void deferOverlapChecks(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SET CONSTRAINTS ALL DEFERRED")) {
+            stmt.execute();
+        }
+    }
+
+    // Runs the deferred checks now rather than at commit, so a conflict is still reported by
+    // the write that caused it.
+    static void checkOverlaps(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SET CONSTRAINTS ALL IMMEDIATE")) {
+            stmt.execute();
+        }
+    }
+
+    static void deleteAll(Connection conn, List<Integer> ids) throws SQLException {
+        if(ids.isEmpty())
+            return;
+
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM reservations WHERE id = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+            stmt.executeUpdate();
+        }
+    }
+
     // ----- Private -----
+    // Strict booking enforces non-overlapping reservations with an exclusion constraint. The
+    // conflicts are only looked up once a write has actually been rejected.
+    private RuntimeException conflictOr(RuntimeException e, Reservation reservation) {
+        if(!isExclusionViolation(e))
+            return e;
+        UnitOfWork.abort();
+        return new ReservationConflictException(reservation, getOverlapping(reservation));
+    }
+
+    /*package*/ static boolean isExclusionViolation(Throwable t) {
+        for(; t != null; t = t.getCause()) {
+            if(t instanceof SQLException && EXCLUSION_VIOLATION.equals(((SQLException) t).getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
+    private QueryBuilder filter(ZonedDateTime start, ZonedDateTime end, int eventId, int personId,
+                                Reservation.ResourceType resourceType, int resourceId) {
+        QueryBuilder query = queryData();
+        if(start != null)
+            query.where(OVERLAPS, start, end);
+        if(eventId > 0) query.where("event_id=?", eventId);
+        if(personId > 0) query.where("reserving_person_id=?", personId);
+        if(resourceType != null) query.where("resource_type=?", resourceType.toString());
+        if(resourceId > 0) query.where("resource_id=?", resourceId);
+        return query;
+    }
 
     @Override
     protected Reservation processRow(ResultSet rs) throws SQLException {
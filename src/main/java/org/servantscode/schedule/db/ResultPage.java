@@ -0,0 +1,18 @@
+package org.servantscode.schedule.db;
+
+import java.util.List;
+
+// One page of results along with the total number of matching rows.
+public class ResultPage<T> {
+    private final List<T> results;
+    private final int total;
+
+    public ResultPage(List<T> results, int total) {
+        this.results = results;
+        this.total = total;
+    }
+
+    // ----- Accessors -----
+    public List<T> getResults() { return results; }
+    public int getTotal() { return total; }
+}
@@ -4,23 +4,41 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.AutoCompleteComparator;
 import org.servantscode.commons.db.DBAccess;
-import org.servantscode.commons.db.EasyDB;
 import org.servantscode.commons.search.InsertBuilder;
 import org.servantscode.commons.search.QueryBuilder;
 import org.servantscode.commons.search.SearchParser;
 import org.servantscode.commons.search.UpdateBuilder;
 import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.schedule.Reservation;
 import org.servantscode.schedule.Room;
 
 import java.sql.*;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static java.lang.String.format;
 import static org.servantscode.commons.StringUtils.isEmpty;
 
 @SuppressWarnings("SqlNoDataSourceInspection")
-public class RoomDB extends EasyDB<Room> {
+public class RoomDB extends ScheduleDB<Room> {
+
+    private static final String OVERLAPS = "r.period && tstzrange(CAST(? AS timestamptz), CAST(? AS timestamptz))";
+
+    // Rooms left joined to their reservations overlapping the window, followed by the reservations
+    // of the given equipment of the organization, which carry no room. %s holds the room filters.
+    private static final String ROOMS_WITH_RESERVATIONS_SQL =
+            "SELECT ro.id, ro.name, ro.type, ro.capacity, r.resource_type, r.resource_id, r.start_time, r.end_time " +
+            "FROM rooms ro LEFT JOIN reservations r ON r.resource_type='ROOM' AND r.resource_id=ro.id AND " + OVERLAPS + " " +
+            "WHERE ro.org_id=?%s " +
+            "UNION ALL " +
+            "SELECT NULL, NULL, NULL, NULL, r.resource_type, r.resource_id, r.start_time, r.end_time " +
+            "FROM reservations r JOIN equipment eq ON eq.id=r.resource_id " +
+            "WHERE r.resource_type='EQUIPMENT' AND r.resource_id = ANY(?) AND eq.org_id=? AND " + OVERLAPS + " " +
+            "ORDER BY 2, 1";
 
     public RoomDB() {
         super(Room.class, "name");
@@ -34,12 +52,85 @@ public class RoomDB extends EasyDB<Room> {
         return getOne(selectAll().from("rooms").withId(id).inOrg());
     }
 
+    // The total is only estimated when asked for and when there is no search to narrow it.
+    public ResultPage<Room> getRoomPage(String search, String sortField, int start, int count, boolean estimateTotal) {
+        if(estimateTotal && isEmpty(search))
+            return new ResultPage<>(getRooms(search, sortField, start, count), estimateCount("rooms"));
+
+        QueryBuilder query = select("*", TOTAL_RESULTS).from("rooms").search(searchParser.parse(search)).inOrg()
+                .page(sortField, start, count);
+        return getPage(query, start, () -> getCount(search));
+    }
+
     public List<Room> getRooms(String search, String sortField, int start, int count) {
         QueryBuilder query = selectAll().from("rooms").search(searchParser.parse(search)).inOrg()
                 .page(sortField, start, count);
         return get(query);
     }
 
+    public List<Room> getAvailableRooms(String search, ZonedDateTime start, ZonedDateTime end) {
+        QueryBuilder query = selectAll().from("rooms").search(searchParser.parse(search)).inOrg()
+                .where(format(NOT_RESERVED, "ROOM", "rooms"), start, end)
+                .sort("name");
+        return get(query);
+    }
+
+    // Rooms without a recorded capacity only match when no minimum is asked for.
+    public List<Room> getRoomsWithCapacity(int minCapacity, Room.RoomType type) {
+        QueryBuilder query = selectAll().from("rooms").inOrg();
+        if(minCapacity > 0)
+            query.where("capacity >= ?", minCapacity);
+        if(type != null)
+            query.where("type = ?", type.toString());
+        return get(query.sort("name"));
+    }
+
+    // As getRoomsWithCapacity, reading in the same query the reservations of those rooms and of
+    // the given equipment that overlap the window. Each reservation is handed to reserved.
+    public List<Room> getRoomsWithReservedPeriods(int minCapacity, Room.RoomType type, List<Integer> equipmentIds,
+                                                  ZonedDateTime start, ZonedDateTime end, Consumer<Reservation> reserved) {
+        String filters = (minCapacity > 0? " AND ro.capacity >= ?": "") + (type != null? " AND ro.type = ?": "");
+        Map<Integer, Room> rooms = new LinkedHashMap<>();
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(format(ROOMS_WITH_RESERVATIONS_SQL, filters))) {
+
+            int param = 1;
+            stmt.setTimestamp(param++, convert(start));
+            stmt.setTimestamp(param++, convert(end));
+            stmt.setInt(param++, OrganizationContext.orgId());
+            if(minCapacity > 0)
+                stmt.setInt(param++, minCapacity);
+            if(type != null)
+                stmt.setString(param++, type.toString());
+            stmt.setArray(param++, conn.createArrayOf("integer", equipmentIds.toArray()));
+            stmt.setInt(param++, OrganizationContext.orgId());
+            stmt.setTimestamp(param++, convert(start));
+            stmt.setTimestamp(param, convert(end));
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int roomId = rs.getInt("id");
+                    if(roomId > 0 && !rooms.containsKey(roomId))
+                        rooms.put(roomId, processRow(rs));
+
+                    String resourceType = rs.getString("resource_type");
+                    if(resourceType == null)
+                        continue;
+
+                    Reservation res = new Reservation();
+                    res.setResourceType(Reservation.ResourceType.valueOf(resourceType));
+                    res.setResourceId(rs.getInt("resource_id"));
+                    res.setStartTime(convert(rs.getTimestamp("start_time")));
+                    res.setEndTime(convert(rs.getTimestamp("end_time")));
+                    reserved.accept(res);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve rooms with reservations", e);
+        }
+        return new ArrayList<>(rooms.values());
+    }
+
     public Room create(Room room) {
         InsertBuilder cmd = insertInto("rooms")
                 .value("name", room.getName())
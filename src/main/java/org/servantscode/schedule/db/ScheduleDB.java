@@ -0,0 +1,104 @@
+package org.servantscode.schedule.db;
+
+import org.servantscode.commons.db.EasyDB;
+import org.servantscode.commons.search.QueryBuilder;
+import org.servantscode.commons.security.OrganizationContext;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Shared paging and transaction support for the schedule tables.
+public abstract class ScheduleDB<T> extends EasyDB<T> {
+    // Add to the select list of a page query so the total comes back with the page itself.
+    protected static final String TOTAL_RESULTS = "count(1) OVER () AS total_results";
+
+    // Anti-join keeping resources (type, table) with no reservation overlapping the start and end
+    // parameters. Served by the GiST index on reservation periods.
+    protected static final String NOT_RESERVED = "NOT EXISTS (SELECT 1 FROM reservations r " +
+            "WHERE r.resource_type='%s' AND r.resource_id=%s.id AND r.period && tstzrange(CAST(? AS timestamptz), CAST(? AS timestamptz)))";
+
+    private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\":\\s*(\\d+)");
+
+    public ScheduleDB(Class<T> clazz, String defaultSearchField) {
+        super(clazz, defaultSearchField);
+    }
+
+    public ScheduleDB(Class<T> clazz, String defaultSearchField, Map<String, String> fieldMap) {
+        super(clazz, defaultSearchField, fieldMap);
+    }
+
+    // Joins the thread's unit of work, if any, instead of checking out a connection of its own.
+    @Override
+    protected Connection getConnection() {
+        Connection shared = UnitOfWork.connection(super::getConnection);
+        return shared != null? shared: super.getConnection();
+    }
+
+    // Draws count ids from the table's id sequence, for bulk inserts that need to know which
+    // row got which id.
+    static List<Integer> allocateIds(Connection conn, String table, int count) throws SQLException {
+        List<Integer> ids = new ArrayList<>(count);
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT nextval(pg_get_serial_sequence(?, 'id')) FROM generate_series(1, ?)")) {
+            stmt.setString(1, table);
+            stmt.setInt(2, count);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next())
+                    ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+
+    // Reads a page selected with TOTAL_RESULTS. The window count is unavailable when the page
+    // is empty, so only then is the separate count query run.
+    protected ResultPage<T> getPage(QueryBuilder query, int start, IntSupplier countQuery) {
+        List<T> results = new ArrayList<>();
+        int total = 0;
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = query.prepareStatement(conn);
+             ResultSet rs = stmt.executeQuery()) {
+
+            while (rs.next()) {
+                results.add(processRow(rs));
+                total = rs.getInt("total_results");
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retrieve page of results", e);
+        }
+
+        if(results.isEmpty() && start > 0)
+            total = countQuery.getAsInt();
+        return new ResultPage<>(results, total);
+    }
+
+    // Uses planner statistics to approximate the number of rows an organization has in a table.
+    // Cheap regardless of table size, but only as accurate as the last ANALYZE.
+    protected int estimateCount(String table) {
+        String sql = "EXPLAIN (FORMAT JSON) SELECT 1 FROM " + table + " WHERE org_id=?";
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, OrganizationContext.orgId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next()? parsePlanRows(rs.getString(1)): 0;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not estimate size of " + table, e);
+        }
+    }
+
+    /*package*/ static int parsePlanRows(String plan) {
+        Matcher m = plan != null? PLAN_ROWS.matcher(plan): null;
+        if(m == null || !m.find())
+            return 0;
+        return (int) Math.min(Long.parseLong(m.group(1)), Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,186 @@
+package org.servantscode.schedule.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+// Runs a piece of work on one connection and one transaction, shared by every schedule DAO
+// used on the thread meanwhile. The connection is checked out by the first DAO that needs it,
+// so work that never reaches the database never opens one. Nested units join the outer one.
+//
+// DAOs see a connection whose close, commit and setAutoCommit do nothing; the unit commits
+// once at the end. A rollback is carried out at once and dooms the whole unit.
+public class UnitOfWork {
+    private static final Logger LOG = LogManager.getLogger(UnitOfWork.class);
+
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private Connection conn;
+    private Connection shared;
+    private boolean rollbackOnly;
+    private final List<Runnable> rollbackActions = new ArrayList<>();
+
+    private UnitOfWork() {}
+
+    public static <T> T call(Supplier<T> work) {
+        return call(work, null);
+    }
+
+    // onRollback runs if the unit this work belongs to is rolled back, e.g. to drop cached state
+    // that was updated along the way.
+    public static <T> T call(Supplier<T> work, Runnable onRollback) {
+        UnitOfWork current = CURRENT.get();
+        if(current != null) {
+            current.onRollback(onRollback);
+            return work.get();
+        }
+
+        UnitOfWork unit = new UnitOfWork();
+        unit.onRollback(onRollback);
+        CURRENT.set(unit);
+        boolean committed = false;
+        try {
+            T result = work.get();
+            if(unit.rollbackOnly)
+                throw new RuntimeException("Transaction rolled back after an earlier failure");
+            unit.commit();
+            committed = true;
+            return result;
+        } finally {
+            CURRENT.remove();
+            if(!committed)
+                unit.rollback();
+            unit.close();
+        }
+    }
+
+    /*package*/ static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    // The shared connection of the current unit, opened from source on first use. Null outside
+    // of a unit.
+    /*package*/ static Connection connection(Supplier<Connection> source) {
+        UnitOfWork unit = CURRENT.get();
+        if(unit == null)
+            return null;
+
+        if(unit.conn == null) {
+            Connection conn = source.get();
+            try {
+                conn.setAutoCommit(false);
+            } catch (SQLException e) {
+                close(conn);
+                throw new RuntimeException("Could not start transaction", e);
+            }
+            unit.conn = conn;
+            unit.shared = (Connection) Proxy.newProxyInstance(UnitOfWork.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> unit.intercept(method, args));
+        }
+        return unit.shared;
+    }
+
+    // Rolls back the current unit now, so the failed transaction can still be queried for
+    // details before the error is rethrown.
+    /*package*/ static void abort() {
+        UnitOfWork unit = CURRENT.get();
+        if(unit != null)
+            unit.rollbackNow();
+    }
+
+    // ----- Private -----
+    private Object intercept(Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+            case "commit":
+            case "setAutoCommit":
+                return null;
+            case "rollback":
+                if(args == null) {
+                    rollbackNow();
+                    return null;
+                }
+                break;
+        }
+
+        try {
+            return method.invoke(conn, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void rollbackNow() {
+        if(conn == null)
+            return;
+
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            LOG.warn("Could not roll back transaction", e);
+        }
+        rollbackOnly = true;
+    }
+
+    private void onRollback(Runnable action) {
+        if(action != null)
+            rollbackActions.add(action);
+    }
+
+    private void commit() {
+        if(conn == null)
+            return;
+
+        try {
+            conn.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not commit transaction", e);
+        }
+    }
+
+    private void rollback() {
+        if(conn != null) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                LOG.warn("Could not roll back transaction", e);
+            }
+        }
+        // A failing action must not hide the failure that caused the rollback.
+        for(Runnable action: rollbackActions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Rollback action failed", e);
+            }
+        }
+    }
+
+    private void close() {
+        if(conn == null)
+            return;
+
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOG.warn("Could not reset connection", e);
+        }
+        close(conn);
+    }
+
+    private static void close(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOG.warn("Could not close connection", e);
+        }
+    }
+}
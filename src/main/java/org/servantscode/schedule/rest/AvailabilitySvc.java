@@ -2,18 +2,24 @@ package org.servantscode.schedule.rest;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.servantscode.schedule.Event;
-import org.servantscode.schedule.Reservation;
-import org.servantscode.schedule.Room;
+import org.servantscode.commons.security.OrganizationContext;
+import org.servantscode.schedule.*;
+import org.servantscode.schedule.db.EquipmentDB;
 import org.servantscode.schedule.db.ReservationDB;
 import org.servantscode.schedule.db.RoomDB;
 
 import javax.ws.rs.*;
 
+import java.time.Duration;
+import java.time.LocalTime;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import static java.util.Collections.emptyList;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static org.servantscode.commons.DateUtils.parse;
 
@@ -21,12 +27,22 @@ import static org.servantscode.commons.DateUtils.parse;
 public class AvailabilitySvc {
     private static Logger LOG = LogManager.getLogger(AvailabilitySvc.class);
 
+    private static final int MAX_FREEBUSY_RESOURCES = 500;
+    private static final int MAX_FREEBUSY_SLOTS = 4 * 24 * 31;
+    private static final int MAX_SLOT_SEARCH_DAYS = 31;
+    private static final int MAX_SLOT_CANDIDATES = 100;
+    private static final int MAX_SERIES_OCCURRENCES = 1000;
+
     private RoomDB roomDb;
+    private EquipmentDB equipmentDb;
     private ReservationDB resDb;
+    private IntervalIndexCache intervals;
 
     public AvailabilitySvc() {
         this.roomDb = new RoomDB();
+        this.equipmentDb = new EquipmentDB();
         this.resDb = new ReservationDB();
+        this.intervals = IntervalIndexCache.INSTANCE;
     }
 
     @GET @Path("/rooms") @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
@@ -40,13 +56,172 @@ public class AvailabilitySvc {
             if (start == null || end == null)
                 throw new BadRequestException();
 
-            List<Room> rooms = roomDb.getRooms(searchString, "name", 0, 0);
-            List<Reservation> reservations = resDb.getReservations(start, end, 0, 0, Reservation.ResourceType.ROOM, 0);
+            IntervalIndex index = getIndex();
+            if(index == null || !index.covers(start))
+                return roomDb.getAvailableRooms(searchString, start, end);
 
-            return rooms.stream().filter(room -> !reservations.stream().anyMatch(res -> res.getResourceId() == room.getId())).collect(Collectors.toList());
+            BitSet busy = index.getBusyResources(Reservation.ResourceType.ROOM, start, end);
+            return roomDb.getRooms(searchString, "name", 0, 0).stream()
+                    .filter(room -> !busy.get(room.getId())).collect(Collectors.toList());
         } catch (Throwable t) {
             LOG.error("Failed to find available rooms", t);
             throw t;
         }
     }
+
+    @GET @Path("/equipment") @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
+    public List<Equipment> getAvailableEquipment(@QueryParam("search") String searchString,
+                                                 @QueryParam("startTime") String startDateString,
+                                                 @QueryParam("endTime") String endDateString) {
+        try {
+
+            ZonedDateTime start = parse(startDateString);
+            ZonedDateTime end = parse(endDateString);
+            if (start == null || end == null)
+                throw new BadRequestException();
+
+            IntervalIndex index = getIndex();
+            if(index == null || !index.covers(start))
+                return equipmentDb.getAvailableEquipment(searchString, start, end);
+
+            BitSet busy = index.getBusyResources(Reservation.ResourceType.EQUIPMENT, start, end);
+            return equipmentDb.getEquipmentList(searchString, "name", 0, 0).stream()
+                    .filter(equipment -> !busy.get(equipment.getId())).collect(Collectors.toList());
+        } catch (Throwable t) {
+            LOG.error("Failed to find available equipment", t);
+            throw t;
+        }
+    }
+
+    // Compact busy bitmaps for a room grid; see FreeBusy for the encoding. With periods=true each
+    // resource's exact busy periods are listed too. Served from the interval index when it covers
+    // the window, otherwise from the database.
+    @GET @Path("/freebusy") @Produces(APPLICATION_JSON)
+    public List<FreeBusy> getFreeBusy(@QueryParam("resourceType") Reservation.ResourceType resourceType,
+                                      @QueryParam("resourceId") List<Integer> resourceIds,
+                                      @QueryParam("startTime") String startDateString,
+                                      @QueryParam("endTime") String endDateString,
+                                      @QueryParam("slotMinutes") @DefaultValue("15") int slotMinutes,
+                                      @QueryParam("periods") boolean periods) {
+        ZonedDateTime start = parse(startDateString);
+        ZonedDateTime end = parse(endDateString);
+        if (resourceType == null || resourceIds == null || resourceIds.isEmpty() || resourceIds.size() > MAX_FREEBUSY_RESOURCES ||
+                start == null || end == null || !end.isAfter(start) || slotMinutes <= 0 ||
+                FreeBusyGrid.slotCount(start, end, slotMinutes) > MAX_FREEBUSY_SLOTS)
+            throw new BadRequestException();
+
+        try {
+            FreeBusyGrid grid = new FreeBusyGrid(resourceType, resourceIds, start, end, slotMinutes, periods);
+            IntervalIndex index = getIndex();
+            if(index != null && index.covers(start)) {
+                for(int id: resourceIds)
+                    index.getBusyPeriods(resourceType, id, start, end).forEach(busy -> grid.markBusy(id, busy.getStartTime(), busy.getEndTime()));
+            } else {
+                boolean rooms = resourceType == Reservation.ResourceType.ROOM;
+                resDb.getReservedPeriods(rooms? resourceIds: emptyList(), rooms? emptyList(): resourceIds, start, end)
+                        .forEach(res -> grid.markBusy(res.getResourceId(), res.getStartTime(), res.getEndTime()));
+            }
+            return grid.getResults();
+        } catch (Throwable t) {
+            LOG.error("Failed to build free/busy", t);
+            throw t;
+        }
+    }
+
+    // Earliest times a suitable room, and any required equipment, is free for the duration.
+    // dayStart and dayEnd (HH:mm) limit the hours considered on each day.
+    @GET @Path("/slots") @Produces(APPLICATION_JSON)
+    public List<SlotCandidate> findSlots(@QueryParam("duration") int durationMinutes,
+                                         @QueryParam("startTime") String startDateString,
+                                         @QueryParam("endTime") String endDateString,
+                                         @QueryParam("capacity") int minCapacity,
+                                         @QueryParam("roomType") Room.RoomType roomType,
+                                         @QueryParam("equipmentId") List<Integer> equipmentIds,
+                                         @QueryParam("dayStart") String dayStartString,
+                                         @QueryParam("dayEnd") String dayEndString,
+                                         @QueryParam("stepMinutes") @DefaultValue("15") int stepMinutes,
+                                         @QueryParam("count") @DefaultValue("10") int count) {
+        ZonedDateTime start = parse(startDateString);
+        ZonedDateTime end = parse(endDateString);
+        LocalTime dayStart = parseTime(dayStartString);
+        LocalTime dayEnd = parseTime(dayEndString);
+        if (durationMinutes <= 0 || start == null || end == null || !end.isAfter(start) ||
+                Duration.between(start, end).toDays() > MAX_SLOT_SEARCH_DAYS ||
+                stepMinutes <= 0 || count <= 0 || count > MAX_SLOT_CANDIDATES ||
+                (dayStart == null) != (dayEnd == null) ||
+                (dayStart != null && Duration.between(dayStart, dayEnd).toMinutes() < durationMinutes))
+            throw new BadRequestException();
+
+        List<Integer> equipment = equipmentIds == null? emptyList(): equipmentIds;
+        try {
+            Duration duration = Duration.ofMinutes(durationMinutes);
+            SlotFinder finder = new SlotFinder(duration, start, end, dayStart, dayEnd, Duration.ofMinutes(stepMinutes));
+            List<Room> rooms = roomDb.getRoomsWithReservedPeriods(minCapacity, roomType, equipment, start, end,
+                    res -> finder.addBusy(res.getResourceType(), res.getResourceId(), res.getStartTime(), res.getEndTime()));
+            if(rooms.isEmpty())
+                return emptyList();
+
+            return finder.find(rooms, equipment, count);
+        } catch (Throwable t) {
+            LOG.error("Failed to find available slots", t);
+            throw t;
+        }
+    }
+
+    // Rooms free for every occurrence of the event's recurrence, followed by rooms with up to
+    // maxConflicts conflicting occurrences, fewest first.
+    @POST @Path("/recurring") @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
+    public List<RoomAvailability> getRoomsForSeries(Event e,
+                                                    @QueryParam("capacity") int minCapacity,
+                                                    @QueryParam("roomType") Room.RoomType roomType,
+                                                    @QueryParam("maxConflicts") @DefaultValue("3") int maxConflicts) {
+        if(e == null || e.getRecurrence() == null || e.getStartTime() == null || e.getEndTime() == null ||
+                !e.getEndTime().isAfter(e.getStartTime()) || maxConflicts < 0)
+            throw new BadRequestException();
+
+        Recurrence recurrence = e.getRecurrence();
+        if(recurrence.getCycle() == null || recurrence.getCycle() == Recurrence.RecurrenceCycle.CUSTOM || recurrence.getEndDate() == null)
+            throw new BadRequestException();
+
+        List<ZonedDateTime> starts = new ArrayList<>();
+        RecurrenceIterator iter = new RecurrenceIterator(recurrence, e.getStartTime());
+        while(iter.hasNext() && starts.size() <= MAX_SERIES_OCCURRENCES)
+            starts.add(iter.next());
+        if(starts.size() > MAX_SERIES_OCCURRENCES)
+            throw new BadRequestException();
+        if(starts.isEmpty())
+            return emptyList();
+
+        try {
+            List<Room> rooms = roomDb.getRoomsWithCapacity(minCapacity, roomType);
+            if(rooms.isEmpty())
+                return emptyList();
+
+            Duration duration = Duration.between(e.getStartTime(), e.getEndTime());
+            List<Integer> roomIds = rooms.stream().map(Room::getId).collect(Collectors.toList());
+            List<Reservation> reserved = resDb.getReservedPeriods(roomIds, emptyList(),
+                    starts.get(0), starts.get(starts.size() - 1).plus(duration), recurrence.getId());
+
+            return new SeriesAvailability(starts, duration).rank(rooms, reserved, maxConflicts);
+        } catch (Throwable t) {
+            LOG.error("Failed to find rooms for series", t);
+            throw t;
+        }
+    }
+
+    // ----- Private -----
+    private static LocalTime parseTime(String time) {
+        if(time == null || time.isEmpty())
+            return null;
+        try {
+            return LocalTime.parse(time);
+        } catch (DateTimeParseException e) {
+            throw new BadRequestException();
+        }
+    }
+
+    private IntervalIndex getIndex() {
+        return intervals.getIndex(OrganizationContext.orgId(), resDb::getUpcomingReservations);
+    }
+
 }
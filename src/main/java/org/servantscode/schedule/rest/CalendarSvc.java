@@ -1,125 +1,110 @@
 package org.servantscode.schedule.rest;
 
-import net.fortuna.ical4j.model.*;
-import net.fortuna.ical4j.model.component.VEvent;
-import net.fortuna.ical4j.model.component.VTimeZone;
-import net.fortuna.ical4j.model.parameter.Cn;
-import net.fortuna.ical4j.model.parameter.Email;
-import net.fortuna.ical4j.model.property.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.rest.SCServiceBase;
 import org.servantscode.commons.security.OrganizationContext;
-import org.servantscode.schedule.Event;
-import org.servantscode.schedule.Reservation;
+import org.servantscode.schedule.CalendarFeedCache;
+import org.servantscode.schedule.CalendarFeedWriter;
+import org.servantscode.schedule.Recurrence;
 import org.servantscode.schedule.db.EventDB;
-import org.servantscode.schedule.db.ReservationDB;
+import org.servantscode.schedule.db.RecurrenceDB;
+import org.servantscode.schedule.db.RoomDB;
 
-import javax.mail.internet.AddressException;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
-import java.net.URISyntaxException;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.util.List;
+import javax.ws.rs.core.*;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static org.servantscode.commons.StringUtils.isEmpty;
-import static org.servantscode.commons.StringUtils.isSet;
-
 @Path("/calendar")
 public class CalendarSvc extends SCServiceBase {
     private static final Logger LOG = LogManager.getLogger(CalendarSvc.class);
 
-    private final EventDB eventDb;
-    private final ReservationDB resDb;
+    private static final CalendarFeedCache FEEDS = new CalendarFeedCache();
 
-    static {
-        System.getProperties().put("net.fortuna.ical4j.timezone.cache.impl", "net.fortuna.ical4j.util.MapTimeZoneCache");
-    }
+    private final EventDB eventDb;
+    private final RecurrenceDB recurDb;
+    private final RoomDB roomDb;
+    private final CalendarFeedCache feeds;
 
     public CalendarSvc() {
         this.eventDb = new EventDB();
-        this.resDb = new ReservationDB();
+        this.recurDb = new RecurrenceDB();
+        this.roomDb = new RoomDB();
+        this.feeds = FEEDS;
     }
 
-    @GET @Path("/public") @Produces("text/calendar")
-    public String getPublicCalendar(){
-        TimeZoneRegistry registry = TimeZoneRegistryFactory.getInstance().createRegistry();
-        //Adjust everything to server time.
-        TimeZone timezone = registry.getTimeZone(ZoneId.systemDefault().toString());
-        VTimeZone tz = timezone.getVTimeZone();
+    public CalendarSvc(EventDB eventDb, RecurrenceDB recurDb, RoomDB roomDb, CalendarFeedCache feeds) {
+        this.eventDb = eventDb;
+        this.recurDb = recurDb;
+        this.roomDb = roomDb;
+        this.feeds = feeds;
+    }
 
-        String host = OrganizationContext.getOrganization().getHostName();
+    @GET @Path("/public") @Produces("text/calendar")
+    public Response getPublicCalendar(@Context Request request) {
+        return getFeed(request, "public", 0, 0);
+    }
 
-        Calendar cal = new Calendar();
-        cal.getProperties().add(new ProdId("-//Servant's Code//iCal4j 1.0//EN"));
-        cal.getProperties().add(Version.VERSION_2_0);
-        cal.getProperties().add(CalScale.GREGORIAN);
-        cal.getComponents().add(tz);
-
-        List<Event> events = eventDb.getEvents("privateEvent:false", "modified_time DESC", 0, 0);
-        for(Event e: events) {
-            VEvent event = new VEvent(convert(e.getStartTime()), convert(e.getEndTime()), e.getTitle());
-            event.getProperties().add(new Uid(e.getId() + "@" + host + ".servantscode.org"));
-            event.getProperties().add(tz.getTimeZoneId());
-            event.getProperties().add(new Description(e.getDescription()));
-            if(e.getCreatedTime() != null)
-                event.getProperties().add(new Created(convert(e.getCreatedTime())));
-            if(e.getModifiedTime() != null)
-                event.getProperties().add(new LastModified(convert(e.getModifiedTime())));
-            event.getProperties().add(new Sequence(e.getSequenceNumber()));
-
-            Location location = getLocation(e.getId());
-            if(location != null)
-                event.getProperties().add(location);
-
-            Organizer organizer = getOrganizer(e);
-            if(organizer != null)
-                event.getProperties().add(organizer);
-
-            cal.getComponents().add(event);
-        }
+    @GET @Path("/room/{id}") @Produces("text/calendar")
+    public Response getRoomCalendar(@Context Request request,
+                                    @PathParam("id") int roomId) {
+        // Unknown ids are refused so they can't each claim a cached feed.
+        if(roomDb.getRoom(roomId) == null)
+            throw new NotFoundException();
+        return getFeed(request, "room:" + roomId, roomId, 0);
+    }
 
-        cal.validate(true);
-        return cal.toString();
+    @GET @Path("/ministry/{id}") @Produces("text/calendar")
+    public Response getMinistryCalendar(@Context Request request,
+                                        @PathParam("id") int ministryId) {
+        if(!eventDb.ministryExists(ministryId))
+            throw new NotFoundException();
+        return getFeed(request, "ministry:" + ministryId, 0, ministryId);
     }
 
-    private Organizer getOrganizer(Event e) {
-        if(isEmpty(e.getContactName()) && isEmpty(e.getContactEmail()))
-            return null;
+    // Streams the feed from the database, leaving it with the cache once written. The queries are
+    // prepared here, while the organization context is still set.
+    /*package*/ StreamingOutput render(CalendarFeedCache.Snapshot feed, String host, int roomId, int ministryId) {
+        Map<Integer, Recurrence> recurrences = recurDb.getEventRecurrences("privateEvent:false").stream()
+                .collect(Collectors.toMap(Recurrence::getId, Function.identity()));
+        // Series must arrive together and in order to be written as recurrence rules.
+        EventDB.EventStream events = eventDb.streamCalendarEvents("privateEvent:false", "recurring_meeting_id, start_time", roomId, ministryId);
 
-        Organizer organizer = new Organizer();
-        organizer.getParameters().add(new Cn(isSet(e.getContactName())? e.getContactName(): e.getContactEmail()));
-        try {
-            if(isSet(e.getContactEmail()))
-                organizer.setValue(String.format("mailto:%s", e.getContactEmail()));
-        } catch (URISyntaxException ex) {
-            LOG.warn("Invalid email address found for person: " + e.getContactName(), ex);
-            //Continue on... this does not invalidate the calendar.
-        }
-        return organizer;
+        return output -> feeds.write(feed, output, out -> writeCalendar(out, host, recurrences, events));
     }
 
-    private Location getLocation(int id) {
-        List<Reservation> reservations = resDb.getReservationsForEvent(id);
-        if(reservations.isEmpty())
-            return null;
+    // ----- Private -----
+    private Response getFeed(Request request, String variant, int roomId, int ministryId) {
+        String host = OrganizationContext.getOrganization().getHostName();
+        CalendarFeedCache.Snapshot feed = feeds.getSnapshot(OrganizationContext.orgId(), variant, eventDb::getFeedFingerprint);
 
-        String resString = reservations.stream()
-                .filter(r -> r.getResourceType() == Reservation.ResourceType.ROOM)
-                .map(Reservation::getResourceName)
-                .collect(Collectors.joining(", "));
-        return new Location(resString);
-    }
+        EntityTag tag = new EntityTag(feed.getTag());
+        Date lastModified = Date.from(feed.getGenerated());
 
-    private DateTime convert(ZonedDateTime zdt) {
-        return new DateTime(Date.from(zdt.toInstant()).getTime());
+        Response.ResponseBuilder builder = request.evaluatePreconditions(lastModified, tag);
+        if(builder == null)
+            builder = Response.ok(feed.getFeed() != null? feed.getFeed(): render(feed, host, roomId, ministryId));
+
+        return builder.tag(tag).lastModified(lastModified).build();
     }
 
-//    public static void main(String[] args) {
-//        OrganizationContext.enableOrganization("localhost");
-//        System.err.println(new CalendarSvc().getCalendar());
-//    }
+    private void writeCalendar(OutputStream output, String host, Map<Integer, Recurrence> recurrences, EventDB.EventStream events) {
+        try {
+            CalendarFeedWriter writer = new CalendarFeedWriter(output, host, recurrences);
+            writer.start();
+            events.forEach(writer::write);
+            writer.finish();
+        } catch (Throwable t) {
+            LOG.error("Failed to write calendar for: " + host, t);
+            throw t;
+        }
+    }
 }
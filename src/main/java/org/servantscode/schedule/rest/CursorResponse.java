@@ -0,0 +1,46 @@
+package org.servantscode.schedule.rest;
+
+import org.servantscode.schedule.KeysetCursor;
+
+import javax.ws.rs.BadRequestException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+// A page of a keyset-paginated listing. next is null on the last page.
+public class CursorResponse<T> {
+    private List<T> results;
+    private int count;
+    private String next;
+
+    // Rows are expected to hold one more than the page size when another page exists.
+    public CursorResponse(List<T> rows, int pageSize, Function<T, KeysetCursor> keyOf) {
+        if(rows.size() > pageSize) {
+            rows = new ArrayList<>(rows.subList(0, pageSize));
+            this.next = keyOf.apply(rows.get(pageSize - 1)).encode();
+        }
+        setResults(rows);
+    }
+
+    // An empty cursor requests the first page.
+    public static KeysetCursor parseCursor(String cursor) {
+        if(cursor == null || cursor.isEmpty())
+            return null;
+        try {
+            return KeysetCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+
+    //----- Accessors -----
+    public List<T> getResults() { return results; }
+    public void setResults(List<T> results) {
+        this.results = results;
+        this.count = results.size();
+    }
+
+    public int getCount() { return count; }
+
+    public String getNext() { return next; }
+}
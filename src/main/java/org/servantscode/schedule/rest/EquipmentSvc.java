@@ -7,6 +7,7 @@ import org.servantscode.commons.rest.SCServiceBase;
 import org.servantscode.schedule.Equipment;
 import org.servantscode.schedule.db.EquipmentDB;
 import org.servantscode.schedule.db.EquipmentDB;
+import org.servantscode.schedule.db.ResultPage;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -26,15 +27,16 @@ public class EquipmentSvc extends SCServiceBase {
     public PaginatedResponse<Equipment> getEquipment(@QueryParam("start") @DefaultValue("0") int start,
                                                      @QueryParam("count") @DefaultValue("10") int count,
                                                      @QueryParam("sort_field") @DefaultValue("id") String sortField,
-                                                     @QueryParam("search") @DefaultValue("") String nameSearch) {
+                                                     @QueryParam("search") @DefaultValue("") String nameSearch,
+                                                     @QueryParam("estimate_total") @DefaultValue("false") boolean estimateTotal) {
 
         verifyUserAccess("equipment.list");
         try {
-            int totalPeople = db.getCount(nameSearch);
+            ResultPage<Equipment> page = db.getEquipmentPage(nameSearch, sortField, start, count, estimateTotal);
 
-            List<Equipment> results = db.getEquipmentList(nameSearch, sortField, start, count);
+            List<Equipment> results = page.getResults();
 
-            return new PaginatedResponse<>(start, results.size(), totalPeople, results);
+            return new PaginatedResponse<>(start, results.size(), page.getTotal(), results);
         } catch (Throwable t) {
             LOG.error("Retrieving equipment failed:", t);
             throw t;
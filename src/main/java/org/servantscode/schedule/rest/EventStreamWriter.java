@@ -0,0 +1,72 @@
+package org.servantscode.schedule.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.servantscode.schedule.Event;
+import org.servantscode.schedule.db.EventDB;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// Writes events to the response as a JSON array while they are read from the database. Events
+// are handed to the chunk processor (to load children and privatize) a chunk at a time, so heap
+// use is bounded by the chunk size rather than by the number of events.
+public class EventStreamWriter implements StreamingOutput {
+    private static final Logger LOG = LogManager.getLogger(EventStreamWriter.class);
+
+    public static final int CHUNK_SIZE = 200;
+
+    private final EventDB.EventStream events;
+    private final ObjectWriter writer;
+    private final UnaryOperator<List<Event>> chunkProcessor;
+
+    public EventStreamWriter(EventDB.EventStream events, ObjectMapper mapper, UnaryOperator<List<Event>> chunkProcessor) {
+        this.events = events;
+        this.writer = mapper.writerFor(Event.class);
+        this.chunkProcessor = chunkProcessor;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (JsonGenerator json = writer.getFactory().createGenerator(output)) {
+            json.writeStartArray();
+
+            List<Event> chunk = new ArrayList<>(CHUNK_SIZE);
+            events.forEach(e -> {
+                chunk.add(e);
+                if(chunk.size() == CHUNK_SIZE)
+                    writeChunk(json, chunk);
+            });
+            writeChunk(json, chunk);
+
+            json.writeEndArray();
+        } catch (IOException | RuntimeException e) {
+            // Headers are already sent; all that can be done is to cut the response short.
+            LOG.error("Streaming events failed.", e);
+            throw e;
+        }
+    }
+
+    // ----- Private -----
+    private void writeChunk(JsonGenerator json, List<Event> chunk) {
+        if(chunk.isEmpty())
+            return;
+
+        try {
+            for(Event e: chunkProcessor.apply(chunk))
+                writer.writeValue(json, e);
+            json.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        chunk.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package org.servantscode.schedule.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.EnumUtils;
@@ -10,16 +11,22 @@ import org.servantscode.schedule.Event.SacramentType;
 import org.servantscode.schedule.db.EventDB;
 import org.servantscode.schedule.db.RecurrenceDB;
 import org.servantscode.schedule.db.ReservationDB;
+import org.servantscode.schedule.db.ResultPage;
+import org.servantscode.schedule.db.UnitOfWork;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
 import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static java.util.Collections.singletonList;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static org.servantscode.commons.StringUtils.isSet;
 import static org.servantscode.schedule.Recurrence.RecurrenceCycle.CUSTOM;
@@ -41,8 +48,14 @@ public class EventSvc extends SCServiceBase {
                                                                         "category_names",
                                                                         "sacrament_type");
 
+    private static final int MAX_CURSOR_PAGE = 1000;
+
+    @Context
+    private Providers providers;
+
     private EventDB db;
     private RecurrenceDB recurDb;
+    private ReservationDB resDb;
 
     private ReservationManager resMan;
     private EventManager eventMan;
@@ -52,6 +65,7 @@ public class EventSvc extends SCServiceBase {
     public EventSvc() {
         db = new EventDB();
         recurDb = new RecurrenceDB();
+        resDb = new ReservationDB();
         resMan = new ReservationManager();
         eventMan = new EventManager();
         recurMan = new RecurrenceManager();
@@ -64,8 +78,7 @@ public class EventSvc extends SCServiceBase {
             privatizer.configurePrivatizer(userHasAccess("event.private.read"), getUserId());
 
             Event event = db.getEvent(id);
-            event.setReservations(resMan.getReservationsForEvent(event.getId()));
-            event.setRecurrence(recurMan.getRecurrence(event.getRecurringMeetingId()));
+            addReservationsAndRecurrences(singletonList(event));
             return privatizer.privatize(event);
         });
     }
@@ -102,22 +115,39 @@ public class EventSvc extends SCServiceBase {
         });
     }
 
+    // Supplying a cursor (empty for the first page) switches to keyset pagination ordered by start time.
+    // Requesting a stream writes every matching event as a JSON array while it is read from the database.
     @GET @Produces(APPLICATION_JSON)
-    public PaginatedResponse<Event> getEvents(@QueryParam("start") @DefaultValue("0") int start,
-                                              @QueryParam("count") @DefaultValue("32768") int count,
-                                              @QueryParam("sort_field") @DefaultValue("start_time") String sortField,
-                                              @QueryParam("search") @DefaultValue("") String search) {
+    public Response getEvents(@QueryParam("start") @DefaultValue("0") int start,
+                              @QueryParam("count") @DefaultValue("32768") int count,
+                              @QueryParam("sort_field") @DefaultValue("start_time") String sortField,
+                              @QueryParam("search") @DefaultValue("") String search,
+                              @QueryParam("cursor") String cursor,
+                              @QueryParam("stream") @DefaultValue("false") boolean stream,
+                              @QueryParam("estimate_total") @DefaultValue("false") boolean estimateTotal) {
 
         return processRequest(() -> {
             verifyUserAccess("event.list");
             privatizer.configurePrivatizer(userHasAccess("event.private.read"), getUserId());
 
+            if(cursor != null)
+                return Response.ok(getEventPage(search, sortField, cursor, count)).build();
+
+            if(stream) {
+                LOG.trace(String.format("Streaming events (%s, %s)", search, sortField));
+                EventStreamWriter output = new EventStreamWriter(db.streamEvents(search, sortField), getObjectMapper(), events -> {
+                    addReservationsAndRecurrences(events);
+                    return privatizer.privatizeEvents(events);
+                });
+                return Response.ok(output, APPLICATION_JSON).build();
+            }
+
             LOG.trace(String.format("Retrieving events (%s, %s, page: %d; %d)", search, sortField, start, count));
-            int totalEvents = db.getCount(search);
-            List<Event> events = db.getEvents(search, sortField, start, count);
-            addReservationsAndRecurrences(search, events);
+            ResultPage<Event> page = db.getEventPage(search, sortField, start, count, estimateTotal);
+            List<Event> events = page.getResults();
+            addReservationsAndRecurrences(events);
 
-            return new PaginatedResponse<>(start, events.size(), totalEvents, privatizer.privatizeEvents(events));
+            return Response.ok(new PaginatedResponse<>(start, events.size(), page.getTotal(), privatizer.privatizeEvents(events))).build();
         });
     }
 
@@ -134,12 +164,7 @@ public class EventSvc extends SCServiceBase {
 
             LOG.trace(String.format("Retrieving %d events by id", ids.size()));
             List<Event> events = db.getEventsById(ids);
-
-            List<Reservation> reservations = new ReservationDB().getEventReservationsById(ids);
-            List<Recurrence> recurrences = new RecurrenceDB().getEventRecurrencesById(ids);
-
-            resMan.populateRservations(events, reservations);
-            recurMan.populateRecurrences(events, recurrences);
+            addReservationsAndRecurrences(events);
 
             return events;
         });
@@ -159,23 +184,27 @@ public class EventSvc extends SCServiceBase {
     }
 
     @GET @Path("/sacrament/{sacramentType}") @Produces(APPLICATION_JSON)
-    public PaginatedResponse<Event> getSacraments(@PathParam("sacramentType") String typeString,
-                                     @QueryParam("start") @DefaultValue("0") int start,
-                                     @QueryParam("count") @DefaultValue("32768") int count,
-                                     @QueryParam("sort_field") @DefaultValue("start_time") String sort,
-                                     @QueryParam("search") @DefaultValue("") String search) {
+    public Response getSacraments(@PathParam("sacramentType") String typeString,
+                                  @QueryParam("start") @DefaultValue("0") int start,
+                                  @QueryParam("count") @DefaultValue("32768") int count,
+                                  @QueryParam("sort_field") @DefaultValue("start_time") String sort,
+                                  @QueryParam("search") @DefaultValue("") String search,
+                                  @QueryParam("cursor") String cursor) {
 
         return processRequest(() -> {
             verifyUserAccess("event.list");
             SacramentType type = SacramentType.valueOf(typeString.toUpperCase());
             String fullSearch = (isSet(search)? search: "") + " sacrament_type:" + type.toString();
 
-            int totalEvents = db.getCount(search);
-            List<Event> events = db.getEvents(fullSearch, sort, start, count);
-            addReservationsAndRecurrences(search, events);
-
             privatizer.configurePrivatizer(userHasAccess("event.private.read"), getUserId());
-            return new PaginatedResponse<>(start, events.size(), totalEvents, privatizer.privatizeEvents(events));
+            if(cursor != null)
+                return Response.ok(getEventPage(fullSearch, sort, cursor, count)).build();
+
+            ResultPage<Event> page = db.getEventPage(fullSearch, sort, start, count, false);
+            List<Event> events = page.getResults();
+            addReservationsAndRecurrences(events);
+
+            return Response.ok(new PaginatedResponse<>(start, events.size(), page.getTotal(), privatizer.privatizeEvents(events))).build();
         });
     }
 
@@ -195,6 +224,7 @@ public class EventSvc extends SCServiceBase {
         return processRequest(() -> {
             verifyUserAccess("event.create");
             LOG.debug("Creating event for: " + event.getStartTime().toString());
+            verifyReservationTimes(singletonList(event));
 
             if(event.getRecurrence() != null)
                 return recurMan.createRecurringEvent(event);
@@ -210,17 +240,20 @@ public class EventSvc extends SCServiceBase {
 
             if(events.isEmpty())
                 throw new BadRequestException();
+            verifyReservationTimes(events);
 
             LOG.debug("Creating event for: " + events.get(0).getStartTime().toString());
-            Recurrence recur = new Recurrence();
-            recur.setCycle(CUSTOM);
-            recurDb.create(recur); //Side effect: Sets Recurrence id
-            events.forEach(event -> {
-                event.setRecurrence(recur);
-                event.setRecurringMeetingId(recur.getId());
-            });
+            return UnitOfWork.call(() -> {
+                Recurrence recur = new Recurrence();
+                recur.setCycle(CUSTOM);
+                recurDb.create(recur); //Side effect: Sets Recurrence id
+                events.forEach(event -> {
+                    event.setRecurrence(recur);
+                    event.setRecurringMeetingId(recur.getId());
+                });
 
-            return recurMan.createEventSeries(events);
+                return recurMan.createEventSeries(events);
+            });
         });
     }
 
@@ -234,6 +267,7 @@ public class EventSvc extends SCServiceBase {
                 throw new NotFoundException();
             if(event.getSchedulerId() != getUserId() && !userHasAccess("admin.event.update"))
                 throw new ForbiddenException();
+            verifyReservationTimes(singletonList(event));
 
             if(event.getRecurrence() != null)
                 return recurMan.updateRecurringEvent(event, dbEvent);
@@ -250,25 +284,28 @@ public class EventSvc extends SCServiceBase {
             int userId = getUserId();
             if(events.stream().anyMatch(event -> event.getSchedulerId() != userId) && !userHasAccess("admin.event.edit"))
                 throw new ForbiddenException();
+            verifyReservationTimes(events);
 
             Event dbEvent = db.getEvent(events.get(0).getId());
             if (dbEvent == null)
                 throw new NotFoundException();
 
-            Recurrence recur = new Recurrence();
-            recur.setCycle(CUSTOM);
-            recur.setId(dbEvent.getRecurringMeetingId());
-
-            if (recur.getId() > 0)
-                recurDb.update(recur);
-            else
-                recurDb.create(recur); //Side effect: Sets Recurrence id
-
-            events.forEach(event -> {
-                event.setRecurrence(recur);
-                event.setRecurringMeetingId(recur.getId());
+            return UnitOfWork.call(() -> {
+                Recurrence recur = new Recurrence();
+                recur.setCycle(CUSTOM);
+                recur.setId(dbEvent.getRecurringMeetingId());
+
+                if (recur.getId() > 0)
+                    recurDb.update(recur);
+                else
+                    recurDb.create(recur); //Side effect: Sets Recurrence id
+
+                events.forEach(event -> {
+                    event.setRecurrence(recur);
+                    event.setRecurringMeetingId(recur.getId());
+                });
+                return recurMan.updateEventSeries(dbEvent, events);
             });
-            return recurMan.updateEventSeries(dbEvent, events);
         });
     }
 
@@ -296,17 +333,42 @@ public class EventSvc extends SCServiceBase {
     public List<String> getSacramentTypes() { return EnumUtils.listValues(Event.SacramentType.class); }
 
     // ----- Private -----
-    private void addReservationsAndRecurrences(@DefaultValue("") @QueryParam("search") String search, List<Event> events) {
-        List<Reservation> reservations = new ReservationDB().getEventReservations(search);
-        List<Recurrence> recurrences = new RecurrenceDB().getEventRecurrences(search);
-        resMan.populateRservations(events, reservations);
-        recurMan.populateRecurrences(events, recurrences);
+    // Use the application's configured mapper so streamed events serialize like any other response.
+    private ObjectMapper getObjectMapper() {
+        ContextResolver<ObjectMapper> resolver = providers != null? providers.getContextResolver(ObjectMapper.class, MediaType.APPLICATION_JSON_TYPE): null;
+        ObjectMapper mapper = resolver != null? resolver.getContext(Event.class): null;
+        return mapper != null? mapper: new ObjectMapper().findAndRegisterModules();
+    }
+
+    // Reservation periods are ranges, which the database refuses to end before they start.
+    private void verifyReservationTimes(List<Event> events) {
+        boolean invalid = events.stream().filter(e -> e.getReservations() != null).flatMap(e -> e.getReservations().stream())
+                .anyMatch(r -> r.getStartTime() != null && r.getEndTime() != null && r.getEndTime().isBefore(r.getStartTime()));
+        if(invalid)
+            throw new BadRequestException();
     }
 
+    private CursorResponse<Event> getEventPage(String search, String sortField, String cursor, int count) {
+        if(!"start_time".equals(sortField) || count <= 0)
+            throw new BadRequestException();
+
+        int pageSize = Math.min(count, MAX_CURSOR_PAGE);
+        LOG.trace(String.format("Retrieving events (%s, after: %s; %d)", search, cursor, pageSize));
+        List<Event> events = db.getEventsAfter(search, CursorResponse.parseCursor(cursor), pageSize + 1);
+
+        CursorResponse<Event> page = new CursorResponse<>(events, pageSize, e -> new KeysetCursor(e.getStartTime(), e.getId()));
+        addReservationsAndRecurrences(page.getResults());
+        page.setResults(privatizer.privatizeEvents(page.getResults()));
+        return page;
+    }
+
+    // Two queries regardless of the number of events, scoped to just the events given.
     private void addReservationsAndRecurrences(List<Event> events) {
-        events.forEach(event -> {
-            event.setReservations(resMan.getReservationsForEvent(event.getId()));
-            event.setRecurrence(recurMan.getRecurrence(event.getRecurringMeetingId()));
-        });
+        if(events.isEmpty())
+            return;
+
+        List<Integer> ids = events.stream().map(Event::getId).collect(Collectors.toList());
+        resMan.populateRservations(events, resDb.getEventReservationsById(ids));
+        recurMan.populateRecurrences(events, recurDb.getEventRecurrencesById(ids));
     }
 }
@@ -3,15 +3,17 @@ package org.servantscode.schedule.rest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.servantscode.commons.rest.SCServiceBase;
+import org.servantscode.commons.security.OrganizationContext;
 import org.servantscode.schedule.*;
 import org.servantscode.schedule.db.ReservationDB;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
@@ -22,19 +24,25 @@ import static org.servantscode.schedule.Recurrence.RecurrenceCycle.CUSTOM;
 public class ReservationSvc extends SCServiceBase {
     private static final Logger LOG = LogManager.getLogger(ReservationSvc.class);
 
+    private static final int MAX_CURSOR_PAGE = 1000;
+
     ReservationDB db;
+    IntervalIndexCache intervals = IntervalIndexCache.INSTANCE;
     private final EventPrivatizer privatizer = new EventPrivatizer();
 
     public ReservationSvc() { db = new ReservationDB(); }
 
+    // Supplying a cursor (empty for the first page) switches to keyset pagination of count reservations.
     @GET
     @Produces(APPLICATION_JSON)
-    public List<Reservation> getReservations(@QueryParam("startTime") String startDateString,
-                                             @QueryParam("endTime") String endDateString,
-                                             @QueryParam("eventId") int eventId,
-                                             @QueryParam("reservingPerson") int reservingPersonId,
-                                             @QueryParam("resourceType") Reservation.ResourceType resourceType,
-                                             @QueryParam("resourceId") int resourceId) {
+    public Response getReservations(@QueryParam("startTime") String startDateString,
+                                    @QueryParam("endTime") String endDateString,
+                                    @QueryParam("eventId") int eventId,
+                                    @QueryParam("reservingPerson") int reservingPersonId,
+                                    @QueryParam("resourceType") Reservation.ResourceType resourceType,
+                                    @QueryParam("resourceId") int resourceId,
+                                    @QueryParam("cursor") String cursor,
+                                    @QueryParam("count") @DefaultValue("1000") int count) {
 
         verifyUserAccess("reservation.list");
         privatizer.configurePrivatizer(userHasAccess("event.private.read"), getUserId());
@@ -49,9 +57,20 @@ public class ReservationSvc extends SCServiceBase {
         if (resourceType == null && eventId == 0 && reservingPersonId == 0 && start == null)
             throw new BadRequestException();
 
+        if (cursor != null && count <= 0)
+            throw new BadRequestException();
+        KeysetCursor after = CursorResponse.parseCursor(cursor);
+
         try {
             LOG.trace("Retrieving reservations");
-            return privatizer.privatizeReservations(db.getReservations(start, end, eventId, reservingPersonId, resourceType, resourceId));
+            if (cursor == null)
+                return Response.ok(privatizer.privatizeReservations(db.getReservations(start, end, eventId, reservingPersonId, resourceType, resourceId))).build();
+
+            int pageSize = Math.min(count, MAX_CURSOR_PAGE);
+            List<Reservation> reservations = db.getReservationsAfter(start, end, eventId, reservingPersonId, resourceType, resourceId, after, pageSize + 1);
+            CursorResponse<Reservation> page = new CursorResponse<>(reservations, pageSize, r -> new KeysetCursor(r.getStartTime(), r.getId()));
+            page.setResults(privatizer.privatizeReservations(page.getResults()));
+            return Response.ok(page).build();
         } catch (Throwable t) {
             throw new RuntimeException("Retrieving reservations failed:", t);
         }
@@ -77,7 +96,7 @@ public class ReservationSvc extends SCServiceBase {
 
         try {
             List<Event> events = new RecurrenceManager().generateEventSeries(e);
-            return events.stream().map(event -> findConflicts(event, e.getRecurrence().getId())).filter(Objects::nonNull).collect(Collectors.toList());
+            return findConflicts(events, e.getRecurrence().getId());
         } catch( Throwable t) {
             LOG.error("Conflict check failed.", t);
             throw t;
@@ -102,7 +121,7 @@ public class ReservationSvc extends SCServiceBase {
 
         try {
             int recurrenceId = events.get(0).getRecurrence().getId();
-            return events.stream().map(event -> findConflicts(event, recurrenceId)).filter(Objects::nonNull).collect(Collectors.toList());
+            return findConflicts(events, recurrenceId);
         } catch( Throwable t) {
             LOG.error("Conflict check failed.", t);
             throw t;
@@ -112,8 +131,10 @@ public class ReservationSvc extends SCServiceBase {
     @POST @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
     public Reservation createReservation(Reservation reservation) {
         verifyUserAccess("reservation.create");
+        verifyTimes(reservation);
         try {
             Reservation resp = db.create(reservation);
+            intervals.saved(OrganizationContext.orgId(), resp);
             LOG.info("Created " + toString(reservation));
             return resp;
         } catch (Throwable t) {
@@ -125,8 +146,10 @@ public class ReservationSvc extends SCServiceBase {
     @PUT @Consumes(APPLICATION_JSON) @Produces(APPLICATION_JSON)
     public Reservation updateReservation(Reservation reservation) {
         verifyUserAccess("reservation.update");
+        verifyTimes(reservation);
         try {
             Reservation resp = db.update(reservation);
+            intervals.saved(OrganizationContext.orgId(), resp);
             LOG.info("Edited " + toString(reservation));
             return resp;
         } catch (Throwable t) {
@@ -144,6 +167,7 @@ public class ReservationSvc extends SCServiceBase {
             Reservation reservation = db.getReservation(id);
             if(reservation == null || !db.delete(id))
                 throw new NotFoundException();
+            intervals.removed(OrganizationContext.orgId(), id);
             LOG.info("Deleted: " + toString(reservation));
         } catch (Throwable t) {
             LOG.error("Deleting reservation failed:", t);
@@ -152,15 +176,63 @@ public class ReservationSvc extends SCServiceBase {
     }
 
     // ----- Private -----
+    // A reservation ending before it starts has no valid period.
+    private void verifyTimes(Reservation reservation) {
+        if(reservation == null || reservation.getStartTime() == null || reservation.getEndTime() == null ||
+                reservation.getEndTime().isBefore(reservation.getStartTime()))
+            throw new BadRequestException();
+    }
+
     private String toString(Reservation reservation) {
         return String.format("Reservation(%d) of %s:%d", reservation.getId(), reservation.getResourceType(), reservation.getResourceId()) +
                 (reservation.getEventId() > 0? "for event:" + reservation.getEventId(): "") +
                 "by reserver:" + reservation.getReservingPersonId();
     }
 
-    private EventConflict findConflicts(Event event, int recurrenceId) {
-        List<Reservation> conflicts = new LinkedList<>();
-        event.getReservations().forEach(res -> conflicts.addAll(db.getConflicts(res, recurrenceId)));
-        return conflicts.isEmpty()? null: privatizer.privatize(new EventConflict(event, conflicts));
+    // All reservations of all events are checked in one query, then regrouped by event. The
+    // in-memory index rules out candidates that overlap nothing, so only possible conflicts
+    // (or ones outside the index) are sent to the database.
+    /*package*/ List<EventConflict> findConflicts(List<Event> events, int recurrenceId) {
+        List<Reservation> candidates = new ArrayList<>();
+        events.stream().filter(event -> event.getReservations() != null).forEach(event -> candidates.addAll(event.getReservations()));
+        List<List<Reservation>> found = checkConflicts(candidates, recurrenceId);
+
+        List<EventConflict> results = new LinkedList<>();
+        int candidate = 0;
+        for(Event event: events) {
+            if(event.getReservations() == null)
+                continue;
+
+            List<Reservation> conflicts = new LinkedList<>();
+            for(int i=0; i<event.getReservations().size(); i++)
+                conflicts.addAll(found.get(candidate++));
+
+            if(!conflicts.isEmpty())
+                results.add(privatizer.privatize(new EventConflict(event, conflicts)));
+        }
+        return results;
+    }
+
+    private List<List<Reservation>> checkConflicts(List<Reservation> candidates, int recurrenceId) {
+        IntervalIndex index = intervals.getIndex(OrganizationContext.orgId(), db::getUpcomingReservations);
+        if(index == null)
+            return db.getConflicts(candidates, recurrenceId);
+
+        List<Integer> possible = new ArrayList<>();
+        for(int i=0; i<candidates.size(); i++) {
+            Reservation c = candidates.get(i);
+            if(c.getResourceType() == null || !index.covers(c.getStartTime()) || index.overlaps(c.getResourceType(), c.getResourceId(), c.getStartTime(), c.getEndTime()))
+                possible.add(i);
+        }
+
+        List<List<Reservation>> found = new ArrayList<>(candidates.size());
+        candidates.forEach(c -> found.add(Collections.emptyList()));
+        if(possible.isEmpty())
+            return found;
+
+        List<List<Reservation>> checked = db.getConflicts(possible.stream().map(candidates::get).collect(Collectors.toList()), recurrenceId);
+        for(int i=0; i<possible.size(); i++)
+            found.set(possible.get(i), checked.get(i));
+        return found;
     }
 }
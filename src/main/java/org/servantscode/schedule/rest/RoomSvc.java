@@ -7,6 +7,7 @@ import org.servantscode.commons.rest.PaginatedResponse;
 import org.servantscode.commons.rest.SCServiceBase;
 import org.servantscode.schedule.Room;
 import org.servantscode.schedule.db.RoomDB;
+import org.servantscode.schedule.db.ResultPage;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -28,15 +29,16 @@ public class RoomSvc extends SCServiceBase {
     public PaginatedResponse<Room> getRooms(@QueryParam("start") @DefaultValue("0") int start,
                                             @QueryParam("count") @DefaultValue("10") int count,
                                             @QueryParam("sort_field") @DefaultValue("id") String sortField,
-                                            @QueryParam("search") @DefaultValue("") String nameSearch) {
+                                            @QueryParam("search") @DefaultValue("") String nameSearch,
+                                            @QueryParam("estimate_total") @DefaultValue("false") boolean estimateTotal) {
 
         verifyUserAccess("room.list");
         try {
-            int totalPeople = db.getCount(nameSearch);
+            ResultPage<Room> page = db.getRoomPage(nameSearch, sortField, start, count, estimateTotal);
 
-            List<Room> results = db.getRooms(nameSearch, sortField, start, count);
+            List<Room> results = page.getResults();
 
-            return new PaginatedResponse<>(start, results.size(), totalPeople, results);
+            return new PaginatedResponse<>(start, results.size(), page.getTotal(), results);
         } catch (Throwable t) {
             LOG.error("Retrieving rooms failed:", t);
             throw t;
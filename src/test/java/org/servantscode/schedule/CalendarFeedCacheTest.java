@@ -0,0 +1,155 @@
+package org.servantscode.schedule;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class CalendarFeedCacheTest {
+
+    private CalendarFeedCache cache;
+    private AtomicInteger renders;
+
+    @Before
+    public void initialise() {
+        cache = new CalendarFeedCache();
+        renders = new AtomicInteger();
+    }
+
+    @Test
+    public void reusesFeedForSameFingerprint() throws IOException {
+        String first = serve("1:public", new FeedFingerprint(3));
+        String second = serve("1:public", new FeedFingerprint(3));
+
+        assertEquals("Feed changed", first, second);
+        assertEquals("Feed rendered more than once", 1, renders.get());
+    }
+
+    @Test
+    public void rendersWhenFingerprintChanges() throws IOException {
+        String first = tagOf("1:public", new FeedFingerprint(3));
+        String edited = tagOf("1:public", new FeedFingerprint(4));
+        String again = tagOf("1:public", new FeedFingerprint(4));
+
+        assertEquals("Wrong number of renders", 2, renders.get());
+        assertNotEquals("Tag did not change on edit", first, edited);
+        assertEquals("Tag changed without an edit", edited, again);
+    }
+
+    @Test
+    public void keysAreIndependent() throws IOException {
+        serve("1:public", new FeedFingerprint(3));
+        serve("2:public", new FeedFingerprint(3));
+
+        assertEquals("Organizations shared a feed", 2, renders.get());
+    }
+
+    @Test
+    public void servesHeldFeedWhenFingerprintFails() throws IOException {
+        String first = serve("1:public", new FeedFingerprint(3));
+        CalendarFeedCache.Snapshot stale = cache.getSnapshot("1:public", () -> { throw new RuntimeException("Query timed out"); });
+
+        assertEquals("Held feed not served", first, new String(stale.getFeed(), UTF_8));
+    }
+
+    @Test
+    public void failedRenderHoldsNothing() throws IOException {
+        CalendarFeedCache.Snapshot snapshot = cache.getSnapshot("1:public", () -> new FeedFingerprint(3));
+        try {
+            cache.write(snapshot, new ByteArrayOutputStream(), out -> { throw new RuntimeException("Connection reset"); });
+            fail("Failure swallowed");
+        } catch (RuntimeException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+
+        assertNull("Partial feed held", cache.getSnapshot("1:public", () -> new FeedFingerprint(3)).getFeed());
+    }
+
+    @Test
+    public void largeFeedStreamedEachTimeButKeepsItsTag() throws IOException {
+        cache = new CalendarFeedCache(500, 1024, 4);
+        CalendarFeedCache.Snapshot first = cache.getSnapshot("1:public", () -> new FeedFingerprint(3));
+        String feed = write(first);
+        CalendarFeedCache.Snapshot second = cache.getSnapshot("1:public", () -> new FeedFingerprint(3));
+
+        assertNull("Large feed held", second.getFeed());
+        assertEquals("Tag changed", first.getTag(), second.getTag());
+        assertEquals("Last modified changed", first.getGenerated(), second.getGenerated());
+        assertEquals("Feed not streamed in full", feed, write(second));
+        assertEquals("Wrong number of renders", 2, renders.get());
+    }
+
+    @Test
+    public void variantsHaveDistinctTags() {
+        CalendarFeedCache.Snapshot room = cache.getSnapshot(1, "room:4", () -> new FeedFingerprint(3));
+        CalendarFeedCache.Snapshot ministry = cache.getSnapshot(1, "ministry:4", () -> new FeedFingerprint(3));
+
+        assertNotEquals("Variants shared a tag", room.getTag(), ministry.getTag());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSnapshot() throws IOException {
+        cache = new CalendarFeedCache(2, 1024, 1024);
+        serve("1:public", new FeedFingerprint(3));
+        serve("1:room:4", new FeedFingerprint(3));
+        serve("1:public", new FeedFingerprint(3));
+        assertEquals("Held feed not reused", 2, renders.get());
+
+        serve("1:room:5", new FeedFingerprint(3));
+        serve("1:public", new FeedFingerprint(3));
+        assertEquals("Recently used feed evicted", 3, renders.get());
+
+        serve("1:room:4", new FeedFingerprint(3));
+        assertEquals("Evicted feed not rendered again", 4, renders.get());
+    }
+
+    @Test
+    public void evictsByTotalSize() throws IOException {
+        int size = serve("1:public", new FeedFingerprint(3)).length();
+        cache = new CalendarFeedCache(500, 2 * size, 1024);
+        renders.set(0);
+
+        serve("1:public", new FeedFingerprint(3));
+        serve("1:room:4", new FeedFingerprint(3));
+        serve("1:room:5", new FeedFingerprint(3));
+        serve("1:room:4", new FeedFingerprint(3));
+        assertEquals("Feeds over total size held", 3, renders.get());
+
+        serve("1:public", new FeedFingerprint(3));
+        assertEquals("Least recently used feed not evicted", 4, renders.get());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void failsWithoutHeldFeed() {
+        cache.getSnapshot("1:public", () -> { throw new RuntimeException("Query timed out"); });
+    }
+
+    private String serve(String key, FeedFingerprint fingerprint) throws IOException {
+        CalendarFeedCache.Snapshot snapshot = cache.getSnapshot(key, () -> fingerprint);
+        return snapshot.getFeed() != null? new String(snapshot.getFeed(), UTF_8): write(snapshot);
+    }
+
+    private String tagOf(String key, FeedFingerprint fingerprint) throws IOException {
+        serve(key, fingerprint);
+        return cache.getSnapshot(key, () -> fingerprint).getTag();
+    }
+
+    private String write(CalendarFeedCache.Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cache.write(snapshot, output, out -> {
+            renders.incrementAndGet();
+            try {
+                out.write(("feed " + snapshot.getFingerprint().toTag()).getBytes(UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new String(output.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package org.servantscode.schedule;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.model.*;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.RecurrenceId;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.*;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static java.time.DayOfWeek.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Recurrence.RecurrenceCycle.*;
+
+public class CalendarFeedWriterTest {
+
+    private static final ZonedDateTime START = ZonedDateTime.of(LocalDate.of(2019, 1, 7), LocalTime.of(9, 0), ZoneId.systemDefault());
+
+    @Test
+    public void testWeeklySeriesCollapsed() throws Exception {
+        Recurrence r = recurrence(WEEKLY, 1, START.toLocalDate().plusWeeks(26), asList(MONDAY, WEDNESDAY));
+        List<Event> events = generate(r);
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Series not collapsed", 1, vevents.size());
+        assertEquals("Wrong recurrence rule", "FREQ=WEEKLY;WKST=MO;UNTIL=20190709T045959Z;INTERVAL=1;BYDAY=MO,WE",
+                vevents.get(0).getProperty(Property.RRULE).getValue());
+        assertEquals("Recurrence does not match stored events", starts(events), instances(vevents.get(0)));
+    }
+
+    @Test
+    public void testMissingOccurrenceExcluded() throws Exception {
+        Recurrence r = recurrence(WEEKLY, 2, START.toLocalDate().plusWeeks(20), asList(MONDAY, FRIDAY));
+        List<Event> events = generate(r);
+        Event removed = events.remove(3);
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Series not collapsed", 1, vevents.size());
+        assertNotNull("Exclusion not written", vevents.get(0).getProperty(Property.EXDATE));
+        assertNotNull("Exclusion not zoned", vevents.get(0).getProperty(Property.EXDATE).getParameter(Parameter.TZID));
+        assertFalse("Removed occurrence still present", instances(vevents.get(0)).contains(removed.getStartTime().toInstant()));
+        assertEquals("Recurrence does not match stored events", starts(events), instances(vevents.get(0)));
+    }
+
+    @Test
+    public void testEditedOccurrenceOverridden() throws Exception {
+        Recurrence r = recurrence(DAILY, 1, START.toLocalDate().plusDays(30), null);
+        List<Event> events = generate(r);
+        events.get(5).setTitle("Bishop's Mass");
+        Event moved = events.get(9);
+        moved.setStartTime(moved.getStartTime().plusHours(2));
+        moved.setEndTime(moved.getEndTime().plusHours(2));
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Wrong number of components", 3, vevents.size());
+        Set<String> uids = vevents.stream().map(v -> v.getUid().getValue()).collect(Collectors.toSet());
+        assertEquals("Overrides do not share the series uid", 1, uids.size());
+
+        List<VEvent> overrides = vevents.stream().filter(v -> v.getRecurrenceId() != null).collect(Collectors.toList());
+        assertEquals("Wrong number of overrides", 2, overrides.size());
+        assertEquals("Wrong override title", "Bishop's Mass", overrides.get(0).getSummary().getValue());
+        RecurrenceId movedId = overrides.get(1).getRecurrenceId();
+        assertEquals("Moved occurrence overrides wrong instance", START.plusDays(9).toInstant().toEpochMilli(), movedId.getDate().getTime());
+        assertEquals("Moved occurrence has wrong time", moved.getStartTime().toInstant().toEpochMilli(), overrides.get(1).getStartDate().getDate().getTime());
+    }
+
+    @Test
+    public void testMovedFirstOccurrenceOverridden() throws Exception {
+        Recurrence r = recurrence(WEEKLY, 1, START.toLocalDate().plusWeeks(12), asList(MONDAY));
+        List<Event> events = generate(r);
+        Event moved = events.get(0);
+        moved.setStartTime(moved.getStartTime().plusHours(2));
+        moved.setEndTime(moved.getEndTime().plusHours(2));
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Wrong number of components", 2, vevents.size());
+        VEvent master = vevents.get(0);
+        assertNull("Master is an override", master.getRecurrenceId());
+        assertEquals("Master not anchored on the series' start", START.toInstant().toEpochMilli(), master.getStartDate().getDate().getTime());
+        assertEquals("Moved first occurrence not an override", START.toInstant().toEpochMilli(), vevents.get(1).getRecurrenceId().getDate().getTime());
+        assertEquals("Moved occurrence has wrong time", moved.getStartTime().toInstant().toEpochMilli(), vevents.get(1).getStartDate().getDate().getTime());
+    }
+
+    @Test
+    public void testWeekdayOfMonth() throws Exception {
+        ZonedDateTime secondTuesday = START.with(TemporalAdjusters.dayOfWeekInMonth(2, TUESDAY));
+        Recurrence r = recurrence(WEEKDAY_OF_MONTH, 1, secondTuesday.toLocalDate().plusMonths(11), null);
+        List<Event> events = generate(r, secondTuesday);
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Series not collapsed", 1, vevents.size());
+        assertTrue("Wrong recurrence rule", vevents.get(0).getProperty(Property.RRULE).getValue().contains("BYDAY=2TU"));
+        assertEquals("Recurrence does not match stored events", starts(events), instances(vevents.get(0)));
+    }
+
+    @Test
+    public void testDivergentSeriesWrittenIndividually() throws Exception {
+        Recurrence r = recurrence(DAILY, 1, START.toLocalDate().plusDays(9), null);
+        List<Event> events = generate(r);
+        for(int i=0; i<events.size(); i++)
+            events.get(i).setTitle("Meeting " + i);
+
+        Calendar cal = write(r, events);
+
+        List<VEvent> vevents = vevents(cal);
+        assertEquals("Divergent series collapsed", events.size(), vevents.size());
+        assertTrue("Recurrence rule written", vevents.stream().allMatch(v -> v.getProperty(Property.RRULE) == null));
+    }
+
+    @Test
+    public void testCustomSeriesWrittenIndividually() throws Exception {
+        Recurrence r = recurrence(DAILY, 1, START.toLocalDate().plusDays(4), null);
+        List<Event> events = generate(r);
+        r.setCycle(CUSTOM);
+
+        Calendar cal = write(r, events);
+
+        assertEquals("Custom series collapsed", events.size(), vevents(cal).size());
+    }
+
+    // ----- Private -----
+    private Calendar write(Recurrence r, List<Event> events) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CalendarFeedWriter writer = new CalendarFeedWriter(output, "test", singletonMap(r.getId(), r));
+        writer.start();
+        events.forEach(writer::write);
+        writer.finish();
+
+        Calendar cal = new CalendarBuilder().build(new ByteArrayInputStream(output.toByteArray()));
+        cal.validate(true);
+        return cal;
+    }
+
+    private List<VEvent> vevents(Calendar cal) {
+        return cal.getComponents(Component.VEVENT).stream().map(c -> (VEvent) c).collect(Collectors.toList());
+    }
+
+    private Set<Instant> instances(VEvent master) {
+        Period window = new Period(new DateTime(START.minusDays(1).toInstant().toEpochMilli()), new DateTime(START.plusYears(2).toInstant().toEpochMilli()));
+        return master.calculateRecurrenceSet(window).stream()
+                .map(p -> Instant.ofEpochMilli(p.getStart().getTime()))
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private Set<Instant> starts(List<Event> events) {
+        return events.stream().map(e -> e.getStartTime().toInstant()).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private Recurrence recurrence(Recurrence.RecurrenceCycle cycle, int frequency, LocalDate end, List<DayOfWeek> days) {
+        Recurrence r = new Recurrence(cycle, frequency, end, days);
+        r.setId(7);
+        return r;
+    }
+
+    private List<Event> generate(Recurrence r) {
+        return generate(r, START);
+    }
+
+    private List<Event> generate(Recurrence r, ZonedDateTime start) {
+        r.setStartTime(start);
+        List<Event> events = new ArrayList<>();
+        RecurrenceIterator iter = new RecurrenceIterator(r, start);
+        int id = 100;
+        while(iter.hasNext()) {
+            ZonedDateTime time = iter.next();
+            Event e = new Event();
+            e.setId(id++);
+            e.setRecurringMeetingId(r.getId());
+            e.setStartTime(time);
+            e.setEndTime(time.plusHours(1));
+            e.setTitle("Mass");
+            e.setDescription("Daily Mass");
+            e.setLocation("Sanctuary");
+            e.setModifiedTime(START);
+            events.add(e);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,73 @@
+package org.servantscode.schedule;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Reservation.ResourceType.ROOM;
+
+public class FreeBusyGridTest {
+
+    private final ZonedDateTime start = ZonedDateTime.of(2019, 6, 3, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void marksOverlappedSlots() {
+        FreeBusyGrid grid = new FreeBusyGrid(ROOM, asList(1, 2), start, start.plusHours(10), 15);
+        grid.markBusy(1, start.plusMinutes(20), start.plusMinutes(45));
+        grid.markBusy(1, start.plusHours(9).plusMinutes(45), start.plusHours(12));
+
+        List<FreeBusy> results = grid.getResults();
+        assertEquals("Wrong resources", 2, results.size());
+        assertEquals("Wrong slot count", 40, results.get(0).getSlots());
+
+        BitSet busy = decode(results.get(0));
+        assertEquals("Wrong busy slots", "{1, 2, 39}", busy.toString());
+        assertTrue("Idle resource busy", decode(results.get(1)).isEmpty());
+    }
+
+    @Test
+    public void listsPeriodsWhenAsked() {
+        FreeBusyGrid grid = new FreeBusyGrid(ROOM, asList(1, 2), start, start.plusHours(10), 15, true);
+        grid.markBusy(1, start.plusHours(3), start.plusHours(4));
+        grid.markBusy(1, start.plusMinutes(20).withZoneSameInstant(ZoneOffset.ofHours(-5)), start.plusMinutes(45));
+        grid.markBusy(3, start, start.plusHours(1));
+
+        List<FreeBusy> results = grid.getResults();
+        List<BusyPeriod> periods = results.get(0).getPeriods();
+        assertEquals("Wrong periods", 2, periods.size());
+        assertEquals("Periods out of order", start.plusMinutes(20), periods.get(0).getStartTime());
+        assertEquals("Period not in window zone", ZoneOffset.UTC, periods.get(0).getStartTime().getZone());
+        assertTrue("Idle resource has periods", results.get(1).getPeriods().isEmpty());
+        assertNull("Periods kept unasked", new FreeBusyGrid(ROOM, asList(1), start, start.plusHours(1), 15).getResults().get(0).getPeriods());
+    }
+
+    @Test
+    public void padsBitmapToFullWindow() {
+        FreeBusyGrid grid = new FreeBusyGrid(ROOM, asList(1), start, start.plusDays(7), 15);
+        grid.markBusy(1, start.minusHours(1), start.plusMinutes(15));
+
+        FreeBusy result = grid.getResults().get(0);
+        assertEquals("Wrong slot count", 672, result.getSlots());
+        assertEquals("Bitmap not padded", 84, Base64.getDecoder().decode(result.getBusy()).length);
+        assertEquals("Wrong busy slots", "{0}", decode(result).toString());
+    }
+
+    @Test
+    public void ignoresUnrequestedResources() {
+        FreeBusyGrid grid = new FreeBusyGrid(ROOM, asList(1), start, start.plusHours(1), 15);
+        grid.markBusy(7, start, start.plusHours(1));
+
+        assertTrue("Unrequested resource marked", decode(grid.getResults().get(0)).isEmpty());
+    }
+
+    // ----- Private -----
+    private BitSet decode(FreeBusy freeBusy) {
+        return BitSet.valueOf(Base64.getDecoder().decode(freeBusy.getBusy()));
+    }
+}
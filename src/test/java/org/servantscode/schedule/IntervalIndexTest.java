@@ -0,0 +1,137 @@
+package org.servantscode.schedule;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Reservation.ResourceType.EQUIPMENT;
+import static org.servantscode.schedule.Reservation.ResourceType.ROOM;
+
+public class IntervalIndexTest {
+
+    private ZonedDateTime horizon;
+    private IntervalIndex index;
+
+    @Before
+    public void initialise() {
+        horizon = ZonedDateTime.now().withHour(0).withMinute(0).withSecond(0).withNano(0);
+        index = new IntervalIndex(horizon, asList(
+                reservation(1, 10, ROOM, 5, 9, 10),
+                reservation(2, 11, ROOM, 5, 11, 12),
+                reservation(3, 12, ROOM, 6, 9, 17),
+                reservation(4, 13, EQUIPMENT, 5, 9, 10)));
+    }
+
+    @Test
+    public void findsOverlapsPerResource() {
+        assertTrue("Overlap missed", index.overlaps(ROOM, 5, at(9, 30), at(10, 30)));
+        assertFalse("Adjacent reservation overlaps", index.overlaps(ROOM, 5, at(10, 0), at(11, 0)));
+        assertFalse("Other resource type overlaps", index.overlaps(EQUIPMENT, 5, at(11, 0), at(11, 30)));
+        assertTrue("Long reservation missed", index.overlaps(ROOM, 6, at(16, 0), at(16, 30)));
+        assertFalse("Unknown resource overlaps", index.overlaps(ROOM, 7, at(9, 0), at(17, 0)));
+    }
+
+    @Test
+    public void emptyIntervalsOverlapNothing() {
+        index.save(reservation(5, 14, ROOM, 7, 10, 10));
+
+        assertFalse("Zero length reservation overlaps", index.overlaps(ROOM, 7, at(9, 0), at(11, 0)));
+        assertEquals("Zero length reservation busy", emptyList(), index.getBusyPeriods(ROOM, 7, at(9, 0), at(11, 0)));
+        assertEquals("Busy rooms", "{5, 6}", index.getBusyResources(ROOM, at(9, 0), at(11, 0)).toString());
+        assertFalse("Empty range overlaps", index.overlaps(ROOM, 5, at(9, 30), at(9, 30)));
+    }
+
+    @Test
+    public void listsBusyPeriodsInOrder() {
+        List<BusyPeriod> busy = index.getBusyPeriods(ROOM, 5, at(8, 0), at(18, 0));
+
+        assertEquals("Wrong busy periods", 2, busy.size());
+        assertTrue("Wrong first period", busy.get(0).getStartTime().isEqual(at(9, 0)));
+        assertTrue("Wrong second period", busy.get(1).getEndTime().isEqual(at(12, 0)));
+        assertEquals("Busy rooms", "{5, 6}", index.getBusyResources(ROOM, at(9, 0), at(9, 30)).toString());
+    }
+
+    @Test
+    public void appliesWrites() {
+        Reservation moved = reservation(1, 10, ROOM, 6, 18, 19);
+        index.save(moved);
+        assertFalse("Moved reservation still on old room", index.overlaps(ROOM, 5, at(9, 0), at(10, 0)));
+        assertTrue("Moved reservation not on new room", index.overlaps(ROOM, 6, at(18, 0), at(19, 0)));
+
+        index.remove(2);
+        assertEquals("Removed reservation still busy", emptyList(), index.getBusyPeriods(ROOM, 5, at(0, 0), at(23, 0)));
+
+        index.removeEvent(12);
+        assertEquals("Event reservation still busy", "{6}", index.getBusyResources(ROOM, at(0, 0), at(23, 0)).toString());
+        assertEquals("Wrong size", 2, index.size());
+    }
+
+    @Test
+    public void onlyCoversFromHorizon() {
+        assertTrue("Horizon not covered", index.covers(horizon));
+        assertFalse("Past covered", index.covers(horizon.minusMinutes(1)));
+    }
+
+    @Test
+    public void cacheReusesIndexAndAppliesWrites() {
+        IntervalIndexCache cache = new IntervalIndexCache(Duration.ofMinutes(10), 100, Clock.systemDefaultZone());
+        AtomicInteger loads = new AtomicInteger();
+
+        IntervalIndex first = cache.getIndex(1, from -> { loads.incrementAndGet(); return new ArrayList<>(); });
+        cache.saved(1, reservation(1, 10, ROOM, 5, 9, 10));
+        IntervalIndex second = cache.getIndex(1, from -> { loads.incrementAndGet(); return new ArrayList<>(); });
+
+        assertSame("Index not reused", first, second);
+        assertEquals("Index loaded more than once", 1, loads.get());
+        assertTrue("Write not applied", second.overlaps(ROOM, 5, at(9, 0), at(10, 0)));
+    }
+
+    @Test
+    public void cacheDiscardsLoadRacingAWrite() {
+        IntervalIndexCache cache = new IntervalIndexCache(Duration.ofMinutes(10), 100, Clock.systemDefaultZone());
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.getIndex(1, from -> {
+            loads.incrementAndGet();
+            cache.saved(1, reservation(1, 10, ROOM, 5, 9, 10));
+            return new ArrayList<>();
+        });
+        cache.getIndex(1, from -> { loads.incrementAndGet(); return new ArrayList<>(); });
+
+        assertEquals("Stale index cached", 2, loads.get());
+    }
+
+    @Test
+    public void cacheFallsBackWhenTooLarge() {
+        IntervalIndexCache cache = new IntervalIndexCache(Duration.ofMinutes(10), 1, Clock.systemDefaultZone());
+
+        assertNull("Oversized index used", cache.getIndex(1, from -> asList(
+                reservation(1, 10, ROOM, 5, 9, 10),
+                reservation(2, 11, ROOM, 5, 11, 12))));
+    }
+
+    // ----- Private -----
+    private ZonedDateTime at(int hour, int minute) {
+        return horizon.plusDays(1).withHour(hour).withMinute(minute);
+    }
+
+    private Reservation reservation(int id, int eventId, Reservation.ResourceType type, int resourceId, int startHour, int endHour) {
+        Reservation r = new Reservation();
+        r.setId(id);
+        r.setEventId(eventId);
+        r.setResourceType(type);
+        r.setResourceId(resourceId);
+        r.setStartTime(at(startHour, 0));
+        r.setEndTime(at(endHour, 0));
+        return r;
+    }
+}
@@ -0,0 +1,190 @@
+package org.servantscode.schedule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.commons.DateUtils;
+import org.servantscode.schedule.db.EventDB;
+import org.servantscode.schedule.db.RecurrenceDB;
+import org.servantscode.schedule.db.ReservationDB;
+
+import java.time.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class RecurrenceManagerTest {
+
+    @Mock
+    EventDB db;
+    @Mock
+    ReservationDB resDb;
+    @Mock
+    RecurrenceDB recurDb;
+
+    private RecurrenceManager recurMan;
+    private ZonedDateTime first;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Before
+    public void initialise() {
+        recurMan = new RecurrenceManager(db, resDb, recurDb, new IntervalIndexCache(Duration.ofMinutes(10), 100, Clock.systemDefaultZone()), () -> 1);
+        first = LocalDate.of(2019, 6, 4).atTime(19, 0).atZone(DateUtils.getTimeZone());
+    }
+
+    @Test
+    public void extendingEndDateOnlyAppends() {
+        when(recurDb.getRecurrence(4)).thenReturn(weekly(LocalDate.of(2019, 6, 25)));
+        when(resDb.getReservationsForEvent(10)).thenReturn(singletonList(reservation(first)));
+
+        recurMan.updateRecurringEvent(edited(weekly(LocalDate.of(2019, 7, 16))), existing());
+
+        SeriesDiff diff = appliedDiff();
+        assertEquals("Wrong appended occurrences", 3, diff.getCreatedEvents().size());
+        assertTrue("Wrong first appended", diff.getCreatedEvents().get(0).getStartTime().isEqual(first.plusWeeks(4)));
+        assertTrue("Reservation not moved", diff.getCreatedEvents().get(2).getReservations().get(0).getStartTime().isEqual(first.plusWeeks(6)));
+        assertTrue("Unexpected deletes", diff.getDeletedEventIds().isEmpty());
+        verify(db, never()).getUpcomingRecurringEvents(anyInt(), any());
+    }
+
+    @Test
+    public void appendsFromSeriesStartWhenLastOccurrenceMoved() {
+        Recurrence stored = weekly(LocalDate.of(2019, 6, 25));
+        stored.setStartTime(first);
+        when(recurDb.getRecurrence(4)).thenReturn(stored);
+        // The last occurrence was moved to the Wednesday evening.
+        Event moved = existing();
+        moved.setId(13);
+        moved.setStartTime(first.plusWeeks(3).plusDays(1).plusHours(1));
+        moved.setEndTime(moved.getStartTime().plusHours(1));
+        when(resDb.getReservationsForEvent(13)).thenReturn(singletonList(reservation(moved.getStartTime())));
+
+        Event edited = edited(weekly(LocalDate.of(2019, 7, 16)));
+        edited.setId(13);
+        edited.setStartTime(moved.getStartTime());
+        edited.setEndTime(moved.getEndTime());
+        edited.setReservations(new ArrayList<>(singletonList(reservation(moved.getStartTime()))));
+        recurMan.updateRecurringEvent(edited, moved);
+
+        SeriesDiff diff = appliedDiff();
+        assertEquals("Wrong appended occurrences", 3, diff.getCreatedEvents().size());
+        assertTrue("Not appended on the series' day and time", diff.getCreatedEvents().get(0).getStartTime().isEqual(first.plusWeeks(4)));
+        assertTrue("Not appended on the series' day and time", diff.getCreatedEvents().get(2).getStartTime().isEqual(first.plusWeeks(6)));
+        assertTrue("Series start not kept", first.isEqual(edited.getRecurrence().getStartTime()));
+    }
+
+    @Test
+    public void shorteningEndDateOnlyDeletesTail() {
+        when(recurDb.getRecurrence(4)).thenReturn(weekly(LocalDate.of(2019, 6, 25)));
+        when(resDb.getReservationsForEvent(10)).thenReturn(singletonList(reservation(first)));
+        when(db.getRecurringEventIds(4, LocalDate.of(2019, 6, 12).atStartOfDay(DateUtils.getTimeZone()), null)).thenReturn(asList(12, 13));
+
+        recurMan.updateRecurringEvent(edited(weekly(LocalDate.of(2019, 6, 11))), existing());
+
+        SeriesDiff diff = appliedDiff();
+        assertEquals("Wrong deleted occurrences", asList(12, 13), diff.getDeletedEventIds());
+        assertTrue("Unexpected creates", diff.getCreatedEvents().isEmpty());
+    }
+
+    @Test
+    public void exceptionChangesTouchOnlyThoseDays() {
+        Recurrence stored = weekly(LocalDate.of(2019, 6, 25));
+        stored.setExceptionDates(singletonList(LocalDate.of(2019, 6, 11)));
+        when(recurDb.getRecurrence(4)).thenReturn(stored);
+        when(resDb.getReservationsForEvent(10)).thenReturn(singletonList(reservation(first)));
+        when(db.getRecurringEventIds(eq(4), any(), eq(singletonList(LocalDate.of(2019, 6, 18))))).thenReturn(singletonList(12));
+
+        Recurrence updated = weekly(LocalDate.of(2019, 6, 25));
+        updated.setExceptionDates(singletonList(LocalDate.of(2019, 6, 18)));
+        recurMan.updateRecurringEvent(edited(updated), existing());
+
+        SeriesDiff diff = appliedDiff();
+        assertEquals("Wrong deleted occurrences", singletonList(12), diff.getDeletedEventIds());
+        assertEquals("Wrong restored occurrences", 1, diff.getCreatedEvents().size());
+        assertTrue("Wrong restored day", diff.getCreatedEvents().get(0).getStartTime().isEqual(first.plusWeeks(1)));
+    }
+
+    @Test
+    public void otherEditsRegenerateSeries() {
+        when(recurDb.getRecurrence(4)).thenReturn(weekly(LocalDate.of(2019, 6, 25)));
+        when(resDb.getReservationsForEvent(10)).thenReturn(singletonList(reservation(first)));
+        when(db.getUpcomingRecurringEvents(4, first)).thenReturn(new ArrayList<>());
+
+        Event edited = edited(weekly(LocalDate.of(2019, 7, 16)));
+        edited.setTitle("Sunday Mass");
+        recurMan.updateRecurringEvent(edited, existing());
+
+        verify(db).getUpcomingRecurringEvents(4, first);
+        assertTrue("Series not restarted from edit", first.isEqual(edited.getRecurrence().getStartTime()));
+    }
+
+    @Test
+    public void deletesSeriesTailInOneCall() {
+        Recurrence r = weekly(LocalDate.of(2019, 6, 25));
+        when(recurDb.getRecurrence(4)).thenReturn(r);
+        Map<Integer, List<Integer>> deleted = new HashMap<>();
+        deleted.put(10, asList(20, 21));
+        deleted.put(11, emptyList());
+        when(db.deleteRecurringEvents(4, first)).thenReturn(deleted);
+
+        recurMan.deleteRecurringEvent(existing());
+
+        verify(db).deleteRecurringEvents(4, first);
+        verify(recurDb).trimEndDate(r);
+        verify(db, never()).getUpcomingRecurringEvents(anyInt(), any());
+    }
+
+    // ----- Private -----
+    private SeriesDiff appliedDiff() {
+        ArgumentCaptor<SeriesDiff> captor = ArgumentCaptor.forClass(SeriesDiff.class);
+        verify(db).updateSeries(captor.capture(), eq(4));
+        return captor.getValue();
+    }
+
+    private Recurrence weekly(LocalDate endDate) {
+        Recurrence r = new Recurrence(Recurrence.RecurrenceCycle.WEEKLY, 1, endDate, singletonList(DayOfWeek.TUESDAY));
+        r.setId(4);
+        return r;
+    }
+
+    private Event existing() {
+        Event e = new Event();
+        e.setId(10);
+        e.setRecurringMeetingId(4);
+        e.setTitle("Mass");
+        e.setSacramentType(Event.SacramentType.MASS);
+        e.setStartTime(first);
+        e.setEndTime(first.plusHours(1));
+        return e;
+    }
+
+    private Event edited(Recurrence r) {
+        Event e = existing();
+        e.setRecurrence(r);
+        e.setReservations(new ArrayList<>(singletonList(reservation(first))));
+        return e;
+    }
+
+    private Reservation reservation(ZonedDateTime start) {
+        Reservation r = new Reservation();
+        r.setResourceType(Reservation.ResourceType.ROOM);
+        r.setResourceId(3);
+        r.setStartTime(start);
+        r.setEndTime(start.plusHours(1));
+        return r;
+    }
+}
@@ -0,0 +1,46 @@
+package org.servantscode.schedule;
+
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class ReservationConflictExceptionTest {
+
+    @Test
+    public void respondsWithConflict() {
+        Reservation requested = getReservation(0, "Youth Night", false);
+        ReservationConflictException e = new ReservationConflictException(requested, asList(getReservation(4, "Choir Practice", false)));
+
+        assertEquals("Wrong status", 409, e.getResponse().getStatus());
+        ReservationConflict body = (ReservationConflict) e.getResponse().getEntity();
+        assertSame("Wrong reservation", requested, body.getReservation());
+        assertEquals("Wrong conflicts", 1, body.getConflicts().size());
+        assertEquals("Title masked", "Choir Practice", body.getConflicts().get(0).getEventTitle());
+    }
+
+    @Test
+    public void masksPrivateEvents() {
+        ReservationConflictException e = new ReservationConflictException(getReservation(0, "Youth Night", false),
+                asList(getReservation(4, "Counseling", true), getReservation(5, "Choir Practice", false)));
+
+        ReservationConflict body = e.getConflict();
+        assertEquals("Private title not masked", "Private Event", body.getConflicts().get(0).getEventTitle());
+        assertEquals("Public title masked", "Choir Practice", body.getConflicts().get(1).getEventTitle());
+    }
+
+    private Reservation getReservation(int id, String title, boolean privateEvent) {
+        ZonedDateTime start = ZonedDateTime.now().withNano(0);
+        Reservation r = new Reservation();
+        r.setId(id);
+        r.setResourceType(Reservation.ResourceType.ROOM);
+        r.setResourceId(3);
+        r.setEventTitle(title);
+        r.setPrivateEvent(privateEvent);
+        r.setStartTime(start);
+        r.setEndTime(start.plusHours(1));
+        return r;
+    }
+}
@@ -0,0 +1,74 @@
+package org.servantscode.schedule;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Reservation.ResourceType.EQUIPMENT;
+import static org.servantscode.schedule.Reservation.ResourceType.ROOM;
+
+public class SeriesAvailabilityTest {
+
+    private final ZonedDateTime first = ZonedDateTime.of(2019, 6, 4, 19, 0, 0, 0, ZoneOffset.UTC);
+    private final Room hall = room(1, "Hall");
+    private final Room library = room(2, "Library");
+    private final Room chapel = room(3, "Chapel");
+
+    @Test
+    public void ranksRoomsByConflicts() {
+        List<Reservation> reserved = asList(
+                reservation(ROOM, 1, first.plusWeeks(1).minusMinutes(30), first.plusWeeks(1).plusMinutes(15)),
+                reservation(ROOM, 1, first.plusWeeks(3).plusMinutes(30), first.plusWeeks(3).plusHours(3)),
+                reservation(ROOM, 2, first.minusHours(3), first.plusWeeks(1).minusHours(1)),
+                reservation(ROOM, 3, first.plusHours(1), first.plusHours(2)),
+                reservation(EQUIPMENT, 3, first, first.plusHours(1)));
+
+        List<RoomAvailability> ranked = series().rank(asList(hall, library, chapel), new ArrayList<>(reserved), 3);
+
+        assertEquals("Wrong rooms", 3, ranked.size());
+        assertSame("Free room not first", chapel, ranked.get(0).getRoom());
+        assertEquals("Adjacent reservation conflicts", 0, ranked.get(0).getConflicts());
+        assertSame("Wrong second room", library, ranked.get(1).getRoom());
+        assertEquals("Wrong conflicts", 1, ranked.get(1).getConflicts());
+        assertSame("Wrong third room", hall, ranked.get(2).getRoom());
+        assertEquals("Wrong conflict times", asList(first.plusWeeks(1), first.plusWeeks(3)), ranked.get(2).getConflictTimes());
+        assertEquals("Wrong occurrence count", 4, ranked.get(2).getOccurrences());
+    }
+
+    @Test
+    public void leavesOutBusyRooms() {
+        List<Reservation> reserved = asList(reservation(ROOM, 1, first.minusDays(1), first.plusWeeks(5)));
+
+        List<RoomAvailability> ranked = series().rank(asList(hall, library), new ArrayList<>(reserved), 0);
+
+        assertEquals("Busy room included", 1, ranked.size());
+        assertSame("Wrong room", library, ranked.get(0).getRoom());
+    }
+
+    // ----- Private -----
+    private SeriesAvailability series() {
+        return new SeriesAvailability(asList(first.plusWeeks(2), first, first.plusWeeks(1), first.plusWeeks(3)), Duration.ofHours(1));
+    }
+
+    private Reservation reservation(Reservation.ResourceType type, int resourceId, ZonedDateTime start, ZonedDateTime end) {
+        Reservation r = new Reservation();
+        r.setResourceType(type);
+        r.setResourceId(resourceId);
+        r.setStartTime(start);
+        r.setEndTime(end);
+        return r;
+    }
+
+    private Room room(int id, String name) {
+        Room room = new Room();
+        room.setId(id);
+        room.setName(name);
+        return room;
+    }
+}
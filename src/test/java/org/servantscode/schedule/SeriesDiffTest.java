@@ -0,0 +1,128 @@
+package org.servantscode.schedule;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Reservation.ResourceType.EQUIPMENT;
+import static org.servantscode.schedule.Reservation.ResourceType.ROOM;
+
+public class SeriesDiffTest {
+
+    private final ZonedDateTime first = ZonedDateTime.of(2019, 6, 4, 19, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void unchangedSeriesTouchesNothing() {
+        List<Event> existing = series(10, 100);
+        Map<Integer, List<Reservation>> reservations = reservationsOf(existing, 1000);
+
+        SeriesDiff diff = SeriesDiff.between(existing, reservations, series(10, 0));
+
+        assertTrue("Unchanged series not empty", diff.isEmpty());
+    }
+
+    @Test
+    public void onlyChangedRowsListed() {
+        List<Event> existing = series(52, 100);
+        Map<Integer, List<Reservation>> reservations = reservationsOf(existing, 1000);
+
+        List<Event> future = series(52, 0);
+        future.get(3).setTitle("Choir (Room change)");
+        future.get(3).getReservations().get(0).setResourceId(8);
+        future.get(5).setDepartmentIds(asList(2));
+        future.get(7).getReservations().get(0).setEndTime(future.get(7).getEndTime().plusMinutes(30));
+
+        SeriesDiff diff = SeriesDiff.between(existing, reservations, future);
+
+        assertEquals("Wrong updated events", asList(future.get(3), future.get(5), future.get(7)), diff.getUpdatedEvents());
+        assertEquals("Sequence not bumped", 1, future.get(3).getSequenceNumber());
+        assertEquals("Wrong relinked events", singletonList(future.get(5)), diff.getRelinkedEvents());
+        assertEquals("Wrong updated reservations", singletonList(future.get(7).getReservations().get(0)), diff.getUpdatedReservations());
+        assertEquals("Reservation id not reused", 1007, diff.getUpdatedReservations().get(0).getId());
+        assertEquals("Moved reservation not created", singletonList(future.get(3).getReservations().get(0)), diff.getCreatedReservations());
+        assertEquals("Old reservation not deleted", singletonList(1003), diff.getDeletedReservationIds());
+        assertEquals("Event id not reused", 103, future.get(3).getId());
+    }
+
+    @Test
+    public void reservationOnlyEditBumpsSequence() {
+        List<Event> existing = series(4, 100);
+        existing.forEach(e -> e.setSequenceNumber(2));
+        Map<Integer, List<Reservation>> reservations = reservationsOf(existing, 1000);
+
+        List<Event> future = series(4, 0);
+        future.get(1).getReservations().get(0).setResourceId(8);
+        future.get(2).getReservations().remove(1);
+
+        SeriesDiff diff = SeriesDiff.between(existing, reservations, future);
+
+        assertEquals("Rebooked events not updated", asList(future.get(1), future.get(2)), diff.getUpdatedEvents());
+        assertEquals("Sequence not bumped", 3, future.get(1).getSequenceNumber());
+        assertEquals("Sequence not bumped", 3, future.get(2).getSequenceNumber());
+        assertEquals("Unchanged sequence bumped", 2, future.get(0).getSequenceNumber());
+        assertTrue("Unexpected relinks", diff.getRelinkedEvents().isEmpty());
+        assertEquals("Dropped reservation not deleted", asList(1001, 1502), diff.getDeletedReservationIds());
+    }
+
+    @Test
+    public void lengthChangesCreateAndDelete() {
+        List<Event> existing = series(5, 100);
+        Map<Integer, List<Reservation>> reservations = reservationsOf(existing, 1000);
+
+        SeriesDiff shorter = SeriesDiff.between(existing, reservations, series(3, 0));
+        assertEquals("Wrong deleted events", asList(103, 104), shorter.getDeletedEventIds());
+        assertTrue("Unexpected creates", shorter.getCreatedEvents().isEmpty());
+
+        List<Event> longer = series(7, 0);
+        SeriesDiff diff = SeriesDiff.between(existing, reservations, longer);
+        assertEquals("Wrong created events", asList(longer.get(5), longer.get(6)), diff.getCreatedEvents());
+        assertTrue("Unexpected deletes", diff.getDeletedEventIds().isEmpty());
+    }
+
+    // ----- Private -----
+    private List<Event> series(int count, int firstId) {
+        List<Event> events = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            Event e = new Event();
+            if(firstId > 0)
+                e.setId(firstId + i);
+            e.setRecurringMeetingId(4);
+            e.setTitle("Choir");
+            e.setSchedulerId(2);
+            e.setStartTime(first.plusWeeks(i));
+            e.setEndTime(first.plusWeeks(i).plusHours(2));
+            e.setDepartmentIds(asList(1, 2));
+            e.setReservations(new ArrayList<>(asList(reservation(ROOM, 5, e), reservation(EQUIPMENT, 1, e))));
+            events.add(e);
+        }
+        return events;
+    }
+
+    private Map<Integer, List<Reservation>> reservationsOf(List<Event> events, int firstId) {
+        Map<Integer, List<Reservation>> byEvent = new HashMap<>();
+        for(int i=0; i<events.size(); i++) {
+            Event e = events.get(i);
+            List<Reservation> reservations = e.getReservations();
+            reservations.get(0).setId(firstId + i);
+            reservations.get(1).setId(firstId + 500 + i);
+            reservations.forEach(r -> r.setEventId(e.getId()));
+            byEvent.put(e.getId(), reservations);
+        }
+        return byEvent;
+    }
+
+    private Reservation reservation(Reservation.ResourceType type, int resourceId, Event e) {
+        Reservation r = new Reservation();
+        r.setResourceType(type);
+        r.setResourceId(resourceId);
+        r.setReservingPersonId(2);
+        r.setStartTime(e.getStartTime());
+        r.setEndTime(e.getEndTime());
+        return r;
+    }
+}
@@ -0,0 +1,86 @@
+package org.servantscode.schedule;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.servantscode.schedule.Reservation.ResourceType.EQUIPMENT;
+import static org.servantscode.schedule.Reservation.ResourceType.ROOM;
+
+public class SlotFinderTest {
+
+    private final ZonedDateTime tuesday = ZonedDateTime.of(2019, 6, 4, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final Room hall = room(1, "Hall");
+    private final Room library = room(2, "Library");
+
+    @Test
+    public void findsEarliestGapPerRoom() {
+        SlotFinder finder = finder(null, null);
+        finder.addBusy(ROOM, 1, at(0, 0), at(9, 0));
+        finder.addBusy(ROOM, 1, at(9, 30), at(12, 0));
+        finder.addBusy(ROOM, 2, at(0, 0), at(10, 10));
+
+        List<SlotCandidate> slots = finder.find(asList(hall, library), emptyList(), 2);
+
+        assertEquals("Wrong candidate count", 2, slots.size());
+        assertSame("Wrong first room", library, slots.get(0).getRoom());
+        assertTrue("Start not aligned to step", slots.get(0).getStartTime().isEqual(at(10, 15)));
+        assertSame("Wrong second room", hall, slots.get(1).getRoom());
+        assertTrue("Wrong second start", slots.get(1).getStartTime().isEqual(at(12, 0)));
+        assertTrue("Wrong end", slots.get(1).getEndTime().isEqual(at(13, 30)));
+    }
+
+    @Test
+    public void keepsToDailyHours() {
+        SlotFinder finder = finder(LocalTime.of(18, 0), LocalTime.of(22, 0));
+        finder.addBusy(ROOM, 1, at(18, 0), at(21, 0));
+
+        List<SlotCandidate> slots = finder.find(singletonList(hall), emptyList(), 2);
+
+        assertTrue("Evening slot not skipped", slots.get(0).getStartTime().isEqual(tuesday.plusDays(1).withHour(18)));
+        assertTrue("Wrong next evening", slots.get(1).getStartTime().isEqual(tuesday.plusDays(2).withHour(18)));
+    }
+
+    @Test
+    public void requiresEquipmentToBeFree() {
+        SlotFinder finder = finder(null, null);
+        finder.addBusy(EQUIPMENT, 7, at(0, 0), at(14, 0));
+        finder.addBusy(EQUIPMENT, 8, at(0, 0), at(1, 0));
+
+        List<SlotCandidate> slots = finder.find(singletonList(hall), singletonList(7), 1);
+
+        assertTrue("Busy equipment ignored", slots.get(0).getStartTime().isEqual(at(14, 0)));
+    }
+
+    @Test
+    public void findsNothingInFullWindow() {
+        SlotFinder finder = finder(null, null);
+        finder.addBusy(ROOM, 1, tuesday.minusDays(1), tuesday.plusDays(4));
+
+        assertTrue("Found slot in booked room", finder.find(singletonList(hall), emptyList(), 5).isEmpty());
+    }
+
+    // ----- Private -----
+    private SlotFinder finder(LocalTime dayStart, LocalTime dayEnd) {
+        return new SlotFinder(Duration.ofMinutes(90), tuesday, tuesday.plusDays(3), dayStart, dayEnd, Duration.ofMinutes(15));
+    }
+
+    private ZonedDateTime at(int hour, int minute) {
+        return tuesday.withHour(hour).withMinute(minute);
+    }
+
+    private Room room(int id, String name) {
+        Room room = new Room();
+        room.setId(id);
+        room.setName(name);
+        return room;
+    }
+}
@@ -0,0 +1,66 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DBUpgradeTest {
+
+    @Mock
+    Connection conn;
+    @Mock
+    Statement stmt;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Test
+    public void concurrentIndexBuildRunsInAutocommit() throws SQLException {
+        when(conn.createStatement()).thenReturn(stmt);
+        when(conn.getAutoCommit()).thenReturn(false);
+
+        testUpgrade().runConcurrently("CREATE INDEX CONCURRENTLY IF NOT EXISTS i ON t(c)");
+
+        InOrder order = inOrder(conn, stmt);
+        order.verify(conn).setAutoCommit(true);
+        order.verify(stmt).execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS i ON t(c)");
+        order.verify(conn).setAutoCommit(false);
+        verify(conn).close();
+    }
+
+    @Test
+    public void concurrentIndexBuildRefusedInUnitOfWork() {
+        try {
+            UnitOfWork.call(() -> {
+                try {
+                    testUpgrade().runConcurrently("CREATE INDEX CONCURRENTLY IF NOT EXISTS i ON t(c)");
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+            fail("Index built inside a transaction");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("unit of work"));
+        }
+        verifyZeroInteractions(conn);
+    }
+
+    // ----- Private -----
+    private DBUpgrade testUpgrade() {
+        return new DBUpgrade() {
+            @Override
+            protected Connection getConnection() { return conn; }
+        };
+    }
+}
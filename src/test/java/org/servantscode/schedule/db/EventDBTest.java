@@ -0,0 +1,194 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.schedule.Event;
+import org.servantscode.schedule.Reservation;
+import org.servantscode.schedule.SeriesDiff;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+public class EventDBTest {
+
+    @Mock
+    Connection conn;
+    @Mock
+    PreparedStatement stmt;
+    @Mock
+    ResultSet rs;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Test
+    public void createsSeriesInOneTransaction() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, true, false, true, true, false);
+        when(rs.getInt(1)).thenReturn(1, 2, 3, 10, 11);
+
+        List<Event> series = series(3);
+        series.get(0).setReservations(singletonList(reservation()));
+        series.get(2).setReservations(new ArrayList<>(singletonList(reservation())));
+
+        testDb().createSeries(series);
+
+        assertEquals("Wrong event id", 3, series.get(2).getId());
+        assertEquals("Reservation not linked", 3, series.get(2).getReservations().get(0).getEventId());
+        assertEquals("Wrong reservation id", 11, series.get(2).getReservations().get(0).getId());
+        // Deferred checks, event ids, events, departments, reservation ids, reservations, overlap check
+        verify(conn, times(7)).prepareStatement(anyString());
+        verify(stmt, times(3)).executeUpdate();
+
+        InOrder tx = inOrder(conn);
+        tx.verify(conn).setAutoCommit(false);
+        tx.verify(conn).commit();
+        tx.verify(conn).setAutoCommit(true);
+        verify(conn, never()).rollback();
+    }
+
+    @Test
+    public void rollsBackFailedSeries() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getInt(1)).thenReturn(1, 2);
+        when(stmt.executeUpdate()).thenThrow(new SQLException("insert failed", "23503"));
+
+        try {
+            testDb().createSeries(series(2));
+            fail("Failure not reported");
+        } catch (RuntimeException e) {
+            assertTrue("Wrong cause", e.getCause() instanceof SQLException);
+        }
+        verify(conn).rollback();
+        verify(conn, never()).commit();
+        verify(conn).setAutoCommit(true);
+    }
+
+    @Test
+    public void seriesMovedByOneIntervalChecksOverlapsOnceWritten() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+
+        List<Event> existing = series(3);
+        Map<Integer, List<Reservation>> booked = new HashMap<>();
+        for(int i=0; i<existing.size(); i++) {
+            Event e = existing.get(i);
+            e.setId(100 + i);
+            Reservation res = reservation(e);
+            res.setId(1000 + i);
+            res.setEventId(e.getId());
+            booked.put(e.getId(), singletonList(res));
+        }
+        // Each occurrence moves onto the slot still held by the next one until it is written too.
+        List<Event> moved = series(3);
+        for(Event e: moved) {
+            e.setStartTime(e.getStartTime().plusWeeks(1));
+            e.setEndTime(e.getEndTime().plusWeeks(1));
+            e.setReservations(singletonList(reservation(e)));
+        }
+        SeriesDiff diff = SeriesDiff.between(existing, booked, moved);
+        assertEquals("Reservations not moved in place", 3, diff.getUpdatedReservations().size());
+
+        testDb().updateSeries(diff, 4);
+
+        InOrder tx = inOrder(conn);
+        tx.verify(conn).prepareStatement("SET CONSTRAINTS ALL DEFERRED");
+        tx.verify(conn).prepareStatement(startsWith("UPDATE reservations"));
+        tx.verify(conn).prepareStatement("SET CONSTRAINTS ALL IMMEDIATE");
+        tx.verify(conn).commit();
+        verify(conn, never()).rollback();
+    }
+
+    @Test
+    public void calendarEventsKeepTheirOwnLocation() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getInt("id")).thenReturn(1, 2);
+        when(rs.getString("location")).thenReturn("Chapel, Hall", null);
+
+        List<Event> events = new ArrayList<>();
+        testDb().streamCalendarEvents("privateEvent:false", "start_time", 0, 0).forEach(events::add);
+
+        assertEquals("Wrong number of events", 2, events.size());
+        assertEquals("Wrong event", 1, events.get(0).getId());
+        assertEquals("Wrong location", "Chapel, Hall", events.get(0).getLocation());
+        assertNull("Unexpected location", events.get(1).getLocation());
+        verify(conn, times(1)).prepareStatement(anyString());
+    }
+
+    @Test
+    public void deletesSeriesTailWithOneStatement() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, true, false);
+        when(rs.getInt("event_id")).thenReturn(10, 10, 11);
+        when(rs.getInt("reservation_id")).thenReturn(20, 21, 0);
+        when(rs.wasNull()).thenReturn(false, false, true);
+
+        Map<Integer, List<Integer>> deleted = testDb().deleteRecurringEvents(4, ZonedDateTime.now());
+
+        assertEquals("Wrong reservations of first event", asList(20, 21), deleted.get(10));
+        assertEquals("Event without reservations missed", new ArrayList<>(), deleted.get(11));
+        verify(conn, times(1)).prepareStatement(startsWith("WITH deleted AS (DELETE FROM events"));
+        verify(conn, never()).setAutoCommit(false);
+    }
+
+    // ----- Private -----
+    private EventDB testDb() {
+        return new EventDB() {
+            @Override
+            protected Connection getConnection() { return conn; }
+        };
+    }
+
+    private List<Event> series(int count) {
+        ZonedDateTime start = ZonedDateTime.now().withNano(0);
+        List<Event> events = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            Event e = new Event();
+            e.setRecurringMeetingId(4);
+            e.setStartTime(start.plusDays(i));
+            e.setEndTime(start.plusDays(i).plusHours(1));
+            e.setDepartmentIds(asList(1, 2));
+            events.add(e);
+        }
+        return events;
+    }
+
+    private Reservation reservation(Event e) {
+        Reservation r = reservation();
+        r.setStartTime(e.getStartTime());
+        r.setEndTime(e.getEndTime());
+        return r;
+    }
+
+    private Reservation reservation() {
+        Reservation r = new Reservation();
+        r.setResourceType(Reservation.ResourceType.ROOM);
+        r.setResourceId(3);
+        r.setStartTime(ZonedDateTime.now());
+        r.setEndTime(ZonedDateTime.now().plusHours(1));
+        return r;
+    }
+}
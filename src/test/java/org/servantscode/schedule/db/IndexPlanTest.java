@@ -0,0 +1,135 @@
+package org.servantscode.schedule.db;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+// Verifies the hot queries can be answered from DBUpgrade's indexes. Runs against a local
+// Postgres given by PLAN_TEST_DB_URL (e.g. jdbc:postgresql://localhost/test?user=test&password=test)
+// and is skipped when that isn't set. Tables are created in a throwaway schema.
+public class IndexPlanTest {
+    private static final String SCHEMA = "index_plan_test";
+
+    private static Connection conn;
+
+    @BeforeClass
+    public static void setUp() throws SQLException {
+        String url = System.getenv("PLAN_TEST_DB_URL");
+        assumeTrue("PLAN_TEST_DB_URL not set", url != null && !url.isEmpty());
+
+        conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            stmt.execute("CREATE SCHEMA " + SCHEMA);
+            stmt.execute("SET search_path TO " + SCHEMA);
+
+            stmt.execute("CREATE TABLE events (id SERIAL PRIMARY KEY, start_time TIMESTAMP WITH TIME ZONE, recurring_meeting_id INTEGER, " +
+                         "end_time TIMESTAMP WITH TIME ZONE, title TEXT, private_event BOOLEAN, ministry_id INTEGER, " +
+                         "modified_time TIMESTAMP WITH TIME ZONE DEFAULT now(), org_id INTEGER)");
+            stmt.execute("CREATE EXTENSION IF NOT EXISTS btree_gist");
+            stmt.execute("CREATE TABLE reservations (id BIGSERIAL PRIMARY KEY, resource_type TEXT, resource_id INTEGER, " +
+                         "event_id INTEGER, start_time TIMESTAMP WITH TIME ZONE, end_time TIMESTAMP WITH TIME ZONE, " +
+                         "period tstzrange GENERATED ALWAYS AS (tstzrange(start_time, end_time)) STORED)");
+            stmt.execute("CREATE TABLE departments (id SERIAL PRIMARY KEY, name TEXT)");
+            stmt.execute("CREATE TABLE categories (id SERIAL PRIMARY KEY, name TEXT)");
+            stmt.execute("CREATE TABLE event_departments (event_id INTEGER, department_id INTEGER)");
+            stmt.execute("CREATE TABLE event_categories (event_id INTEGER, category_id INTEGER)");
+            stmt.execute("CREATE TABLE feed_versions (org_id INTEGER PRIMARY KEY, version BIGINT NOT NULL)");
+
+            for(Map.Entry<String, String> index: DBUpgrade.INDEXES.entrySet())
+                stmt.execute("CREATE INDEX " + index.getKey() + " ON " + index.getValue());
+
+            stmt.execute("ANALYZE");
+            stmt.execute("SET enable_seqscan = off");
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws SQLException {
+        if(conn == null)
+            return;
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void eventPage() throws SQLException {
+        assertIndexed("SELECT * FROM events e WHERE e.org_id=1 ORDER BY e.start_time, e.id LIMIT 25");
+    }
+
+    @Test
+    public void eventKeysetPage() throws SQLException {
+        assertIndexed("SELECT * FROM events e WHERE e.org_id=1 AND (e.start_time, e.id) > ('2019-06-01T00:00:00Z', 412) " +
+                      "ORDER BY e.start_time, e.id LIMIT 25");
+    }
+
+    @Test
+    public void feedFingerprint() throws SQLException {
+        assertIndexed("SELECT version FROM feed_versions WHERE org_id=1");
+    }
+
+    @Test
+    public void upcomingRecurringEvents() throws SQLException {
+        assertIndexed("SELECT * FROM events WHERE recurring_meeting_id=7 AND start_time >= now() ORDER BY start_time");
+    }
+
+    @Test
+    public void eventDepartments() throws SQLException {
+        assertIndexed("SELECT array_agg(d.id), array_agg(d.name) FROM departments d, event_departments ed " +
+                      "WHERE d.id=ed.department_id AND ed.event_id=12");
+    }
+
+    @Test
+    public void eventCategories() throws SQLException {
+        assertIndexed("SELECT array_agg(c.id), array_agg(c.name) FROM categories c, event_categories cd " +
+                      "WHERE c.id=cd.category_id AND cd.event_id=12");
+    }
+
+    @Test
+    public void eventReservations() throws SQLException {
+        assertIndexed("SELECT * FROM reservations r WHERE r.event_id = ANY('{12,13,14}'::int[])");
+    }
+
+    @Test
+    public void resourceConflicts() throws SQLException {
+        assertIndexed("SELECT * FROM reservations r WHERE r.resource_type='ROOM' AND r.resource_id=3 " +
+                      "AND r.period && tstzrange('2019-06-01T10:00:00Z', '2019-06-01T11:00:00Z') ORDER BY r.start_time");
+    }
+
+    @Test
+    public void reservationsInRange() throws SQLException {
+        assertIndexed("SELECT * FROM reservations r WHERE r.period && tstzrange('2019-06-01T10:00:00Z', '2019-06-01T11:00:00Z') " +
+                      "AND r.resource_type='EQUIPMENT'");
+    }
+
+    @Test
+    public void reservationKeysetPage() throws SQLException {
+        assertIndexed("SELECT * FROM reservations r WHERE (r.start_time, r.id) > ('2019-06-01T00:00:00Z', 97) " +
+                      "ORDER BY r.start_time, r.id LIMIT 25");
+    }
+
+    // ----- Private -----
+    private void assertIndexed(String sql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN " + sql)) {
+            while(rs.next())
+                plan.append(rs.getString(1)).append('\n');
+        }
+        assertFalse("Sequential scan in plan:\n" + plan, plan.toString().contains("Seq Scan"));
+    }
+}
@@ -0,0 +1,114 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.schedule.Reservation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ReservationDBTest {
+
+    @Mock
+    Connection conn;
+    @Mock
+    PreparedStatement stmt;
+    @Mock
+    ResultSet rs;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Test
+    public void detectsExclusionViolation() {
+        SQLException cause = new SQLException("conflicting key value violates exclusion constraint", "23P01");
+
+        assertTrue("Violation not detected", ReservationDB.isExclusionViolation(cause));
+        assertTrue("Wrapped violation not detected", ReservationDB.isExclusionViolation(new RuntimeException("Could not create", cause)));
+    }
+
+    @Test
+    public void ignoresOtherFailures() {
+        assertFalse("Unique violation treated as conflict", ReservationDB.isExclusionViolation(new SQLException("duplicate key", "23505")));
+        assertFalse("Plain failure treated as conflict", ReservationDB.isExclusionViolation(new RuntimeException("Connection reset")));
+    }
+
+    @Test
+    public void conflictsCheckedInOneStatement() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        when(rs.next()).thenReturn(true, true, true, false);
+        when(rs.getInt("candidate")).thenReturn(0, 2, 2);
+        when(rs.getInt("id")).thenReturn(11, 12, 13);
+        when(rs.getString("resource_type")).thenReturn("ROOM");
+
+        List<List<Reservation>> conflicts = testDb().getConflicts(candidates(300), 0);
+
+        assertEquals("Wrong number of results", 300, conflicts.size());
+        assertEquals("Wrong conflicts for first", 1, conflicts.get(0).size());
+        assertEquals("Unexpected conflicts", 0, conflicts.get(1).size());
+        assertEquals("Wrong conflicts for third", 2, conflicts.get(2).size());
+        assertEquals("Wrong conflict", 13, conflicts.get(2).get(1).getId());
+        verify(conn, times(1)).prepareStatement(anyString());
+        verify(stmt, times(1)).executeQuery();
+    }
+
+    @Test
+    public void noCandidatesNoQuery() throws SQLException {
+        assertTrue("Unexpected conflicts", testDb().getConflicts(new ArrayList<>(), 0).isEmpty());
+        verify(conn, never()).prepareStatement(any());
+    }
+
+    @Test
+    public void reservedPeriodsOnlyOfOrganization() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+
+        ZonedDateTime start = ZonedDateTime.now();
+        testDb().getReservedPeriods(singletonList(3), singletonList(9), start, start.plusDays(1), 4);
+
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(conn).prepareStatement(sql.capture());
+        assertTrue("Periods not limited to organization", sql.getValue().contains("COALESCE(ro.org_id, e.org_id) = ?"));
+        verify(stmt).setInt(eq(3), anyInt());
+        verify(stmt).setInt(6, 4);
+    }
+
+    private ReservationDB testDb() {
+        return new ReservationDB() {
+            @Override
+            protected Connection getConnection() { return conn; }
+        };
+    }
+
+    private List<Reservation> candidates(int count) {
+        ZonedDateTime start = ZonedDateTime.now().withNano(0);
+        List<Reservation> candidates = new ArrayList<>();
+        for(int i=0; i<count; i++) {
+            Reservation r = new Reservation();
+            r.setResourceType(Reservation.ResourceType.ROOM);
+            r.setResourceId(3);
+            r.setStartTime(start.plusDays(i));
+            r.setEndTime(start.plusDays(i).plusHours(1));
+            candidates.add(r);
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,70 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.schedule.Reservation;
+import org.servantscode.schedule.Room;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RoomDBTest {
+
+    @Mock
+    Connection conn;
+    @Mock
+    PreparedStatement stmt;
+    @Mock
+    ResultSet rs;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Test
+    public void roomsAndReservationsInOneQuery() throws SQLException {
+        when(conn.prepareStatement(anyString())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+        // Chapel with two reservations, Hall with none, then one equipment reservation.
+        when(rs.next()).thenReturn(true, true, true, true, false);
+        when(rs.getInt("id")).thenReturn(3, 3, 3, 5, 5, 0);
+        when(rs.getString("name")).thenReturn("Chapel", "Hall");
+        when(rs.getString("type")).thenReturn("SANCTUARY", "MEETING");
+        when(rs.getString("resource_type")).thenReturn("ROOM", "ROOM", null, "EQUIPMENT");
+        when(rs.getInt("resource_id")).thenReturn(3, 3, 9);
+
+        List<Reservation> reserved = new ArrayList<>();
+        ZonedDateTime start = ZonedDateTime.now();
+        List<Room> rooms = testDb().getRoomsWithReservedPeriods(0, null, singletonList(9), start, start.plusDays(1), reserved::add);
+
+        assertEquals("Wrong rooms", asList(3, 5), asList(rooms.get(0).getId(), rooms.get(1).getId()));
+        assertEquals("Wrong reservations", 3, reserved.size());
+        assertEquals("Equipment reservation lost", Reservation.ResourceType.EQUIPMENT, reserved.get(2).getResourceType());
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(conn, times(1)).prepareStatement(sql.capture());
+        assertTrue("Equipment not limited to organization", sql.getValue().contains("eq.org_id=?"));
+        verify(stmt, never()).setInt(4, 0);
+    }
+
+    // ----- Private -----
+    private RoomDB testDb() {
+        return new RoomDB() {
+            @Override
+            protected Connection getConnection() { return conn; }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.commons.search.QueryBuilder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ScheduleDBTest {
+
+    @Mock
+    Connection conn;
+    @Mock
+    PreparedStatement stmt;
+    @Mock
+    ResultSet rs;
+    @Mock
+    QueryBuilder query;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    private NameDB db;
+    private AtomicInteger counts;
+
+    @Before
+    public void initialise() throws SQLException {
+        db = new NameDB();
+        counts = new AtomicInteger();
+        when(query.prepareStatement(any())).thenReturn(stmt);
+        when(stmt.executeQuery()).thenReturn(rs);
+    }
+
+    @Test
+    public void totalComesWithPage() throws SQLException {
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getString("name")).thenReturn("Chapel", "Hall");
+        when(rs.getInt("total_results")).thenReturn(57);
+
+        ResultPage<String> page = db.getPage(query, 20, this::count);
+
+        assertEquals("Wrong results", asList("Chapel", "Hall"), page.getResults());
+        assertEquals("Wrong total", 57, page.getTotal());
+        assertEquals("Count query run", 0, counts.get());
+    }
+
+    @Test
+    public void emptyFirstPageHasNoResults() throws SQLException {
+        when(rs.next()).thenReturn(false);
+
+        ResultPage<String> page = db.getPage(query, 0, this::count);
+
+        assertEquals("Wrong results", emptyList(), page.getResults());
+        assertEquals("Wrong total", 0, page.getTotal());
+        assertEquals("Count query run", 0, counts.get());
+    }
+
+    @Test
+    public void emptyLaterPageCounts() throws SQLException {
+        when(rs.next()).thenReturn(false);
+
+        ResultPage<String> page = db.getPage(query, 40, this::count);
+
+        assertEquals("Wrong total", 33, page.getTotal());
+        assertEquals("Count query not run", 1, counts.get());
+    }
+
+    @Test
+    public void parsesPlanRows() {
+        String plan = "[{\"Plan\": {\"Node Type\": \"Index Only Scan\", \"Startup Cost\": 0.29, \"Total Cost\": 812.4, " +
+                      "\"Plan Rows\": 24515, \"Plan Width\": 0}}]";
+
+        assertEquals("Wrong estimate", 24515, ScheduleDB.parsePlanRows(plan));
+        assertEquals("Wrong estimate", 0, ScheduleDB.parsePlanRows("[]"));
+        assertEquals("Wrong estimate", 0, ScheduleDB.parsePlanRows(null));
+    }
+
+    private int count() {
+        counts.incrementAndGet();
+        return 33;
+    }
+
+    private class NameDB extends ScheduleDB<String> {
+        NameDB() { super(String.class, "name"); }
+
+        @Override
+        protected Connection getConnection() { return conn; }
+
+        @Override
+        protected String processRow(ResultSet rs) throws SQLException {
+            return rs.getString("name");
+        }
+    }
+}
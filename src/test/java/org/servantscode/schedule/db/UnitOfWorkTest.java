@@ -0,0 +1,135 @@
+package org.servantscode.schedule.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UnitOfWorkTest {
+
+    @Mock
+    Connection conn;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    private final AtomicInteger checkouts = new AtomicInteger();
+
+    @Test
+    public void sharesOneConnectionAndCommitsOnce() throws SQLException {
+        String result = UnitOfWork.call(() -> {
+            Connection first = connection();
+            Connection second = connection();
+            assertSame("Connection not shared", first, second);
+            assertTrue("Unit not active", UnitOfWork.isActive());
+            try {
+                first.setAutoCommit(false);
+                first.commit();
+                first.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "done";
+        });
+
+        assertEquals("done", result);
+        assertEquals("Wrong checkouts", 1, checkouts.get());
+        verify(conn).setAutoCommit(false);
+        verify(conn, times(1)).commit();
+        verify(conn, never()).rollback();
+        verify(conn, times(1)).close();
+    }
+
+    @Test
+    public void opensNoConnectionWithoutDatabaseWork() {
+        AtomicInteger rolledBack = new AtomicInteger();
+        UnitOfWork.call(() -> "nothing", rolledBack::incrementAndGet);
+
+        assertEquals("Connection opened", 0, checkouts.get());
+        assertEquals("Rollback action run", 0, rolledBack.get());
+        assertNull("Unit left open", connection());
+        assertFalse("Unit still active", UnitOfWork.isActive());
+    }
+
+    @Test
+    public void nestedUnitsJoinOuter() throws SQLException {
+        UnitOfWork.call(() -> {
+            connection();
+            return UnitOfWork.call(this::connection);
+        });
+
+        assertEquals("Wrong checkouts", 1, checkouts.get());
+        verify(conn, times(1)).commit();
+    }
+
+    @Test
+    public void failureRollsBackAndRunsActions() throws SQLException {
+        AtomicInteger rolledBack = new AtomicInteger();
+        try {
+            UnitOfWork.call(() -> {
+                connection();
+                return UnitOfWork.call(() -> {
+                    throw new IllegalStateException("boom");
+                }, rolledBack::incrementAndGet);
+            });
+            fail("Failure swallowed");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+
+        verify(conn, never()).commit();
+        verify(conn).rollback();
+        verify(conn).close();
+        assertEquals("Rollback action not run", 1, rolledBack.get());
+    }
+
+    @Test
+    public void failingRollbackActionKeepsOriginalFailure() throws SQLException {
+        try {
+            UnitOfWork.call(() -> {
+                connection();
+                throw new IllegalStateException("boom");
+            }, () -> { throw new IllegalStateException("No organization"); });
+            fail("Failure swallowed");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+
+        verify(conn).close();
+    }
+
+    @Test
+    public void innerRollbackDoomsUnit() throws SQLException {
+        try {
+            UnitOfWork.call(() -> {
+                try {
+                    connection().rollback();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+            fail("Rolled back unit reported success");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("rolled back"));
+        }
+
+        verify(conn, never()).commit();
+    }
+
+    // ----- Private -----
+    private Connection connection() {
+        return UnitOfWork.connection(() -> {
+            checkouts.incrementAndGet();
+            return conn;
+        });
+    }
+}
@@ -0,0 +1,178 @@
+package org.servantscode.schedule.rest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.servantscode.schedule.CalendarFeedCache;
+import org.servantscode.schedule.Event;
+import org.servantscode.schedule.FeedFingerprint;
+import org.servantscode.schedule.Recurrence;
+import org.servantscode.schedule.db.EventDB;
+import org.servantscode.schedule.db.RecurrenceDB;
+import org.servantscode.schedule.db.RoomDB;
+
+import javax.ws.rs.NotFoundException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.*;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CalendarSvcTest {
+
+    @Mock
+    EventDB db;
+    @Mock
+    RecurrenceDB recurDb;
+    @Mock
+    RoomDB roomDb;
+
+    private CalendarSvc svc;
+    private CalendarFeedCache feeds;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    @Before
+    public void initialise() {
+        feeds = new CalendarFeedCache();
+        svc = new CalendarSvc(db, recurDb, roomDb, feeds);
+    }
+
+    @Test
+    public void publicCalendarSingleEvent() throws IOException {
+        String feed = renderFeed(1);
+
+        assertTrue("Feed is not a calendar", feed.startsWith("BEGIN:VCALENDAR"));
+        assertEquals("Wrong number of events", 1, countEvents(feed));
+        assertTrue("Location not written", feed.contains("\nLOCATION:Sanctuary\\, Hall"));
+        verify(db, times(1)).streamCalendarEvents(anyString(), anyString(), eq(0), eq(0));
+        verify(recurDb, times(1)).getEventRecurrences(anyString());
+        verifyNoMoreInteractions(db, recurDb);
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void unknownRoomNotFound() {
+        svc.getRoomCalendar(null, 42);
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void unknownMinistryNotFound() {
+        svc.getMinistryCalendar(null, 42);
+    }
+
+    @Test
+    public void publicCalendarQueryCountIsConstant() throws IOException {
+        Recurrence daily = new Recurrence(Recurrence.RecurrenceCycle.DAILY, 1, getTestEvent(3).getStartTime().toLocalDate());
+        daily.setId(20);
+        when(recurDb.getEventRecurrences(anyString())).thenReturn(singletonList(daily));
+        when(db.streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt())).thenReturn(processor -> {
+            for(int i=1; i<=5000; i++) {
+                Event e = getTestEvent(i);
+                e.setLocation(i <= 3? "Chapel": i % 2 == 0? null: "Room " + i);
+                e.setRecurringMeetingId(i <= 3? 20: 0);
+                processor.accept(e);
+            }
+        });
+
+        String feed = render(0, 0);
+
+        assertEquals("Series not written under its recurrence", 1, count(feed, "\nUID:series20@test.servantscode.org"));
+        assertEquals("Series not collapsed", 4998, countEvents(feed));
+        assertTrue("Location not kept with its event", feed.contains("\nLOCATION:Room 4999"));
+        assertEquals("Wrong number of locations", 2499, count(feed, "\nLOCATION:"));
+        verify(db, times(1)).streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt());
+        verify(recurDb, times(1)).getEventRecurrences(anyString());
+        verifyNoMoreInteractions(db, recurDb);
+    }
+
+    @Test
+    public void publicCalendarNoLocation() throws IOException {
+        when(db.streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt())).thenReturn(processor -> {
+            Event e = getTestEvent(1);
+            e.setLocation(null);
+            processor.accept(e);
+        });
+
+        String feed = render(0, 0);
+        assertEquals("Wrong number of events", 1, countEvents(feed));
+        assertFalse("Unexpected location", feed.contains("\nLOCATION:"));
+    }
+
+    @Test
+    public void roomAndMinistryFeedsFilteredByDatabase() throws IOException {
+        when(db.streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt())).thenReturn(processor -> generateEvents(3, processor));
+
+        render(4, 0);
+        render(0, 7);
+
+        verify(db).streamCalendarEvents(anyString(), anyString(), eq(4), eq(0));
+        verify(db).streamCalendarEvents(anyString(), anyString(), eq(0), eq(7));
+    }
+
+    @Test
+    public void renderedFeedHeldForNextRequest() throws IOException {
+        when(db.streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt())).thenReturn(processor -> generateEvents(3, processor));
+
+        String feed = render(0, 0);
+        CalendarFeedCache.Snapshot held = feeds.getSnapshot("1:public", this::fingerprint);
+
+        assertEquals("Rendered feed not held", feed, new String(held.getFeed(), UTF_8));
+    }
+
+    private String renderFeed(int eventCount) throws IOException {
+        when(db.streamCalendarEvents(anyString(), anyString(), anyInt(), anyInt())).thenReturn(processor -> generateEvents(eventCount, processor));
+        return render(0, 0);
+    }
+
+    private String render(int roomId, int ministryId) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        svc.render(feeds.getSnapshot("1:public", this::fingerprint), "test", roomId, ministryId).write(output);
+        return new String(output.toByteArray(), UTF_8);
+    }
+
+    private FeedFingerprint fingerprint() {
+        return new FeedFingerprint(3);
+    }
+
+    private void generateEvents(int count, Consumer<Event> processor) {
+        for(int i=1; i<=count; i++)
+            processor.accept(getTestEvent(i));
+    }
+
+    private int countEvents(String feed) {
+        return count(feed, "BEGIN:VEVENT");
+    }
+
+    private int count(String feed, String text) {
+        int count = 0;
+        for(int i = feed.indexOf(text); i >= 0; i = feed.indexOf(text, i+1))
+            count++;
+        return count;
+    }
+
+    private Event getTestEvent(int id) {
+        ZonedDateTime zd = ZonedDateTime.of(LocalDateTime.of(LocalDate.of(2015, 10, 21), LocalTime.of(16, 29)), ZoneId.systemDefault());
+        Event e = new Event();
+        e.setId(id);
+        e.setStartTime(zd.plusDays(id));
+        e.setEndTime(zd.plusDays(id).plusHours(1));
+        e.setTitle("Destination");
+        e.setDescription("Just a test");
+        e.setContactName("Dr. Emmett Brown");
+        e.setContactEmail("doc@hillvalley.org");
+        e.setLocation("Sanctuary, Hall");
+        return e;
+    }
+}
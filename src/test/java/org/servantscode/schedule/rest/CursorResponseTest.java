@@ -0,0 +1,66 @@
+package org.servantscode.schedule.rest;
+
+import org.junit.Test;
+import org.servantscode.schedule.KeysetCursor;
+
+import javax.ws.rs.BadRequestException;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CursorResponseTest {
+
+    private static final ZonedDateTime START = ZonedDateTime.of(LocalDateTime.of(2015, 10, 21, 16, 29, 0, 123456000), ZoneId.of("America/Chicago"));
+
+    @Test
+    public void cursorRoundTrips() {
+        KeysetCursor cursor = CursorResponse.parseCursor(new KeysetCursor(START, 88).encode());
+
+        assertTrue("Start time changed", START.isEqual(cursor.getStartTime()));
+        assertEquals("Id changed", 88, cursor.getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorNeedsStartTime() {
+        new KeysetCursor(null, 88);
+    }
+
+    @Test
+    public void emptyCursorIsFirstPage() {
+        assertNull("Empty cursor not treated as first page", CursorResponse.parseCursor(""));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void rejectsMalformedCursor() {
+        CursorResponse.parseCursor("not-a-cursor");
+    }
+
+    @Test
+    public void nextPointsAtLastResult() {
+        CursorResponse<Integer> page = new CursorResponse<>(ids(11), 10, this::key);
+
+        assertEquals("Wrong page size", 10, page.getCount());
+        assertEquals("Wrong next cursor", 10, CursorResponse.parseCursor(page.getNext()).getId());
+    }
+
+    @Test
+    public void lastPageHasNoNext() {
+        CursorResponse<Integer> page = new CursorResponse<>(ids(10), 10, this::key);
+
+        assertEquals("Wrong page size", 10, page.getCount());
+        assertNull("Unexpected next cursor", page.getNext());
+    }
+
+    private List<Integer> ids(int count) {
+        List<Integer> ids = new ArrayList<>();
+        for(int i=1; i<=count; i++)
+            ids.add(i);
+        return ids;
+    }
+
+    private KeysetCursor key(int id) {
+        return new KeysetCursor(START.plusHours(id), id);
+    }
+}
@@ -0,0 +1,78 @@
+package org.servantscode.schedule.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.servantscode.schedule.Event;
+import org.servantscode.schedule.db.EventDB;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class EventStreamWriterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void writesEventsAsArray() throws Exception {
+        JsonNode result = mapper.readTree(write(generate(450), events -> events));
+
+        assertTrue("Not an array", result.isArray());
+        assertEquals("Wrong number of events", 450, result.size());
+        assertEquals("Events out of order", 450, result.get(449).get("id").asInt());
+    }
+
+    @Test
+    public void processesInChunks() throws Exception {
+        List<Integer> chunkSizes = new ArrayList<>();
+        write(generate(450), events -> {
+            chunkSizes.add(events.size());
+            return events;
+        });
+
+        int chunk = EventStreamWriter.CHUNK_SIZE;
+        List<Integer> expected = new ArrayList<>();
+        for(int remaining = 450; remaining > 0; remaining -= chunk)
+            expected.add(Math.min(chunk, remaining));
+        assertEquals("Wrong chunking", expected, chunkSizes);
+    }
+
+    @Test
+    public void writesProcessedEvents() throws Exception {
+        JsonNode result = mapper.readTree(write(generate(3), events -> {
+            events.forEach(e -> e.setTitle("Private Event"));
+            return events;
+        }));
+
+        result.forEach(node -> assertEquals("Event not processed", "Private Event", node.get("title").asText()));
+    }
+
+    @Test
+    public void writesEmptyArray() throws Exception {
+        JsonNode result = mapper.readTree(write(generate(0), events -> { fail("Unexpected chunk"); return events; }));
+
+        assertTrue("Not an array", result.isArray());
+        assertEquals("Unexpected events", 0, result.size());
+    }
+
+    private byte[] write(EventDB.EventStream events, UnaryOperator<List<Event>> processor) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new EventStreamWriter(events, mapper, processor).write(output);
+        return output.toByteArray();
+    }
+
+    private EventDB.EventStream generate(int count) {
+        return processor -> {
+            for(int i=1; i<=count; i++) {
+                Event e = new Event();
+                e.setId(i);
+                e.setTitle("Event " + i);
+                processor.accept(e);
+            }
+        };
+    }
+}